@@ -48,7 +48,6 @@ dependencies {
     // Use the Kotlin JDK 8 standard library.
     api("org.jetbrains.kotlin:kotlin-stdlib-jdk8:2.0.20")
     implementation("org.jetbrains.kotlinx:kotlinx-serialization-json:1.7.2")
-    implementation("org.jetbrains.kotlin:kotlin-reflect:2.0.20")
 
     // Use the Kotlin test library.
     testImplementation("org.jetbrains.kotlin:kotlin-test:2.0.20")
@@ -0,0 +1,79 @@
+package com.keepersecurity.secretsManager.core
+
+import java.io.EOFException
+import java.io.InputStream
+import java.io.OutputStream
+import java.security.GeneralSecurityException
+import javax.crypto.Cipher
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+private const val GCM_IV_SIZE = 12
+private const val GCM_TAG_SIZE = 16
+private const val STREAM_BUFFER_SIZE = 64 * 1024
+
+// Decrypts data produced by encrypt() (12 byte IV | ciphertext | 16 byte tag) from a stream in fixed size buffers
+// with the GCM cipher of the configured provider. Providers that stream GCM decryption (Bouncy Castle) hand out
+// the plaintext as it is decrypted, the JDK provider holds all of it back until the tag is verified.
+// The tag is checked by the provider at the end, so whatever was written to the output before this throws
+// is unauthenticated and must be discarded - callers write to a temporary file and release it afterwards.
+internal fun decryptStream(input: InputStream, key: ByteArray, output: OutputStream) {
+    val iv = ByteArray(GCM_IV_SIZE)
+    readFully(input, iv)
+    val cipher = aesCipher("AES/GCM/NoPadding")
+    cipher.init(Cipher.DECRYPT_MODE, SecretKeySpec(key, "AES"), GCMParameterSpec(GCM_TAG_SIZE * 8, iv))
+    val buffer = ByteArray(STREAM_BUFFER_SIZE)
+    while (true) {
+        val read = input.read(buffer)
+        if (read < 0) {
+            break
+        }
+        cipher.update(buffer, 0, read)?.let { output.write(it) }
+    }
+    try {
+        output.write(cipher.doFinal())
+    } catch (e: GeneralSecurityException) {
+        throw Exception("Encrypted data failed authentication", e)
+    }
+}
+
+// Encrypts exactly `length` bytes of the stream to the same format as encrypt() in fixed size buffers
+internal fun encryptStream(input: InputStream, length: Long, key: ByteArray, output: OutputStream) {
+    val iv = getRandomBytes(GCM_IV_SIZE)
+    val cipher = aesCipher("AES/GCM/NoPadding")
+    cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(key, "AES"), GCMParameterSpec(GCM_TAG_SIZE * 8, iv))
+    output.write(iv)
+    val buffer = ByteArray(STREAM_BUFFER_SIZE)
+    var total = 0L
+    while (true) {
+        val read = input.read(buffer)
+        if (read < 0) {
+            break
+        }
+        total += read
+        if (total > length) {
+            throw Exception("File is longer than the declared size $length")
+        }
+        cipher.update(buffer, 0, read)?.let { output.write(it) }
+    }
+    if (total != length) {
+        throw Exception("File is shorter than the declared size $length")
+    }
+    output.write(cipher.doFinal())
+}
+
+private fun aesCipher(transformation: String): Cipher {
+    val provider = KeeperCryptoParameters.provider
+    return if (provider == null) Cipher.getInstance(transformation) else Cipher.getInstance(transformation, provider)
+}
+
+private fun readFully(input: InputStream, bytes: ByteArray) {
+    var offset = 0
+    while (offset < bytes.size) {
+        val read = input.read(bytes, offset, bytes.size - offset)
+        if (read < 0) {
+            throw EOFException("Encrypted data is truncated")
+        }
+        offset += read
+    }
+}
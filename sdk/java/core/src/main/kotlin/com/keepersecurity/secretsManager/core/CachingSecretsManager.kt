@@ -0,0 +1,131 @@
+package com.keepersecurity.secretsManager.core
+
+import kotlinx.serialization.ExperimentalSerializationApi
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * In-memory cache of the decrypted records of a Secrets Manager application.
+ *
+ * The first call loads all shared records, later calls are served from memory.
+ * Once a snapshot is older than `ttlMillis - refreshAheadMillis` a background refresh is started
+ * and callers keep getting the current snapshot until the new one is ready (stale-while-revalidate).
+ * Callers block only on the very first load or when the snapshot is older than `ttlMillis + maxStaleMillis`
+ * (ex. the application has been unreachable for a long time).
+ *
+ * Refreshes use [syncSecrets] so only the records with a new revision are decrypted again.
+ * Records are shared between all callers - use [refresh] after modifying and saving a record.
+ *
+ * @param options Secrets Manager options, background refreshes run on [SecretsManagerOptions.executor]
+ * @param ttlMillis How long a snapshot is considered fresh
+ * @param refreshAheadMillis How long before the expiration the background refresh starts
+ * @param maxStaleMillis How long past the expiration a snapshot can still be served while the refresh keeps failing
+ */
+@ExperimentalSerializationApi
+class CachingSecretsManager @JvmOverloads constructor(
+    val options: SecretsManagerOptions,
+    val ttlMillis: Long = TimeUnit.MINUTES.toMillis(5),
+    val refreshAheadMillis: Long = ttlMillis / 5,
+    val maxStaleMillis: Long = TimeUnit.MINUTES.toMillis(30)
+) {
+
+    private class Snapshot(val secrets: KeeperSecrets, val loadedAt: Long) {
+        val recordsByUid: Map<String, KeeperRecord> = secrets.records.associateBy { it.recordUid }
+    }
+
+    @Volatile
+    private var snapshot: Snapshot? = null
+    private val refreshing = AtomicBoolean(false)
+    private val loadLock = Any()
+
+    init {
+        require(ttlMillis > 0) { "TTL must be positive" }
+        require(refreshAheadMillis in 0 until ttlMillis) { "Refresh ahead interval must be shorter than TTL" }
+    }
+
+    /**
+     * Returns the cached records, or only the records with the given UIDs when the filter is not empty
+     */
+    @JvmOverloads
+    fun getSecrets(recordsFilter: List<String> = emptyList()): KeeperSecrets {
+        val current = currentSnapshot()
+        if (recordsFilter.isEmpty()) {
+            return current.secrets
+        }
+        val records = recordsFilter.mapNotNull { current.recordsByUid[it] }
+        return KeeperSecrets(current.secrets.appData, records, current.secrets.expiresOn, current.secrets.warnings)
+    }
+
+    fun getRecordByUid(recordUid: String): KeeperRecord? {
+        return currentSnapshot().recordsByUid[recordUid]
+    }
+
+    /**
+     * Reloads the records from the vault, blocking the caller
+     */
+    fun refresh(): KeeperSecrets {
+        synchronized(loadLock) {
+            return load().secrets
+        }
+    }
+
+    /**
+     * Drops the cached records, the next call will load them again
+     */
+    fun invalidate() {
+        snapshot = null
+    }
+
+    private fun currentSnapshot(): Snapshot {
+        val current = snapshot
+        if (current != null) {
+            val age = ageMillis(current)
+            if (age < ttlMillis + maxStaleMillis) {
+                if (age >= ttlMillis - refreshAheadMillis) {
+                    refreshInBackground()
+                }
+                return current
+            }
+        }
+        synchronized(loadLock) {
+            // another thread could have loaded the snapshot while this one was waiting for the lock
+            val loaded = snapshot
+            if (loaded != null && ageMillis(loaded) < ttlMillis) {
+                return loaded
+            }
+            return load()
+        }
+    }
+
+    private fun refreshInBackground() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return
+        }
+        try {
+            options.asyncExecutor.execute {
+                try {
+                    synchronized(loadLock) {
+                        load()
+                    }
+                } catch (e: Exception) {
+                    println("Background refresh of the cached secrets failed: ${e.message}")
+                } finally {
+                    refreshing.set(false)
+                }
+            }
+        } catch (e: Exception) {
+            refreshing.set(false)
+            throw e
+        }
+    }
+
+    private fun load(): Snapshot {
+        val loaded = Snapshot(syncSecrets(options, snapshot?.secrets).secrets, System.nanoTime())
+        snapshot = loaded
+        return loaded
+    }
+
+    private fun ageMillis(snapshot: Snapshot): Long {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - snapshot.loadedAt)
+    }
+}
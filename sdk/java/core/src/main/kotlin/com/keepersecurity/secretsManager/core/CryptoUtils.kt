@@ -24,9 +24,7 @@ internal object KeeperCryptoParameters {
 
     internal val provider: Provider?
     internal val keyFactory: KeyFactory
-    internal val keyGen: KeyPairGenerator
     internal val ecParameterSpec: ECParameterSpec
-    internal val sha256: MessageDigest
 
     init {
         var bcProvider = Security.getProvider("BCFIPS")
@@ -41,16 +39,46 @@ internal object KeeperCryptoParameters {
         val parameters = AlgorithmParameters.getInstance("EC")
         parameters.init(ecGenParameterSpec)
         ecParameterSpec = parameters.getParameterSpec(ECParameterSpec::class.java)
-        keyGen = if (provider == null)
-            KeyPairGenerator.getInstance("EC") else
-            KeyPairGenerator.getInstance("EC", provider)
-        keyGen.initialize(ecGenParameterSpec)
-        sha256 = if (provider == null)
-            MessageDigest.getInstance("SHA-256") else
-            MessageDigest.getInstance("SHA-256", provider)
     }
 }
 
+// Cipher, Signature, Mac, KeyAgreement, MessageDigest and KeyPairGenerator are not thread safe and the provider
+// lookup of getInstance is expensive - every thread keeps its own instances and re-initializes them per operation
+private inline fun <T> perThread(crossinline factory: (Provider?) -> T): ThreadLocal<T> {
+    return ThreadLocal.withInitial { factory(KeeperCryptoParameters.provider) }
+}
+
+private val gcmCipher = perThread { provider ->
+    if (provider == null) Cipher.getInstance("AES/GCM/NoPadding") else Cipher.getInstance("AES/GCM/NoPadding", provider)
+}
+
+// Some cryptographic libraries such as the SUN provider in Java indicate PKCS#5 where PKCS#7 should be used
+private val cbcCipher = perThread { provider ->
+    if (provider == null) Cipher.getInstance("AES/CBC/PKCS5Padding") else Cipher.getInstance("AES/CBC/PKCS7Padding", provider)
+}
+
+private val ecdsaSignature = perThread { provider ->
+    if (provider == null) Signature.getInstance("SHA256withECDSA") else Signature.getInstance("SHA256withECDSA", provider)
+}
+
+private val hmacSha512 = perThread { provider ->
+    if (provider == null) Mac.getInstance("HmacSHA512") else Mac.getInstance("HmacSHA512", provider)
+}
+
+private val ecdhKeyAgreement = perThread { provider ->
+    if (provider == null) KeyAgreement.getInstance("ECDH") else KeyAgreement.getInstance("ECDH", provider)
+}
+
+private val sha256Digest = perThread { provider ->
+    if (provider == null) MessageDigest.getInstance("SHA-256") else MessageDigest.getInstance("SHA-256", provider)
+}
+
+private val ecKeyGen = perThread { provider ->
+    val keyGen = if (provider == null) KeyPairGenerator.getInstance("EC") else KeyPairGenerator.getInstance("EC", provider)
+    keyGen.initialize(ECGenParameterSpec("secp256r1"))
+    keyGen
+}
+
 internal fun bytesToBase64(data: ByteArray): String {
     return Base64.getEncoder().encodeToString(data)
 }
@@ -75,10 +103,57 @@ internal fun stringToBytes(data: String): ByteArray {
     return data.encodeToByteArray()
 }
 
+/**
+ * Supplies the SecureRandom used for keys, IVs, UIDs and generated passwords
+ */
+fun interface KeeperRandomSource {
+    /**
+     * Returns the generator to use on the calling thread, it must be safe to call from any thread
+     */
+    fun get(): SecureRandom
+}
+
+/**
+ * Non-blocking random source - a DRBG seeded once on first use (Java 9+, the platform default SecureRandom otherwise).
+ * @param perThread Every thread gets its own self-seeded generator instead of sharing one
+ */
+class DrbgRandomSource @JvmOverloads constructor(val perThread: Boolean = false) : KeeperRandomSource {
+
+    private val shared: SecureRandom by lazy { newSecureRandom() }
+    private val local: ThreadLocal<SecureRandom>? = if (perThread) ThreadLocal.withInitial { newSecureRandom() } else null
+
+    override fun get(): SecureRandom {
+        return local?.get() ?: shared
+    }
+
+    private fun newSecureRandom(): SecureRandom {
+        return try {
+            SecureRandom.getInstance("DRBG")
+        } catch (e: NoSuchAlgorithmException) {
+            SecureRandom()
+        }
+    }
+}
+
+@Volatile
+private var randomSource: KeeperRandomSource = DrbgRandomSource()
+
+/**
+ * Replaces the process wide random source, ex. `setRandomSource { SecureRandom.getInstanceStrong() }`
+ * restores the blocking generator of the earlier versions.
+ * This is the only way to change the source - it applies to all clients in the JVM, call it once at startup.
+ */
+fun setRandomSource(source: KeeperRandomSource) {
+    randomSource = source
+}
+
+internal fun secureRandom(): SecureRandom {
+    return randomSource.get()
+}
+
 internal fun getRandomBytes(length: Int): ByteArray {
-    val secureRandom = SecureRandom.getInstanceStrong()
     val bytes = ByteArray(length)
-    secureRandom.nextBytes(bytes)
+    secureRandom().nextBytes(bytes)
     return bytes
 }
 
@@ -97,24 +172,25 @@ internal fun generateUid(): ByteArray {
 }
 
 internal fun generateKeyPair(): java.security.KeyPair {
-    return KeeperCryptoParameters.keyGen.genKeyPair()
+    return ecKeyGen.get().genKeyPair()
 }
 
 internal fun hash(data: ByteArray, tag: String): ByteArray {
-    val mac = if (KeeperCryptoParameters.provider == null)
-        Mac.getInstance("HmacSHA512") else
-        Mac.getInstance("HmacSHA512", KeeperCryptoParameters.provider)
+    val mac = hmacSha512.get()
     mac.init(SecretKeySpec(data, "HmacSHA512"))
     return mac.doFinal(stringToBytes(tag))
 }
 
+internal fun hmac(key: ByteArray, data: ByteBuffer): ByteArray {
+    val mac = hmacSha512.get()
+    mac.init(SecretKeySpec(key, "HmacSHA512"))
+    mac.update(data)
+    return mac.doFinal()
+}
+
+// returns the cipher of the calling thread - use it right away, the next call re-initializes it
 internal fun getCipher(mode: Int, iv: ByteArray, key: ByteArray, useCBC: Boolean = false): Cipher {
-    // Some cryptographic libraries such as the SUN provider in Java indicate PKCS#5 where PKCS#7 should be used
-    val paddingProvider = if (KeeperCryptoParameters.provider == null) "AES/CBC/PKCS5Padding" else "AES/CBC/PKCS7Padding"
-    val transformation = if (useCBC) paddingProvider else "AES/GCM/NoPadding"
-    val cipher = if (KeeperCryptoParameters.provider == null)
-        Cipher.getInstance(transformation) else
-        Cipher.getInstance(transformation, KeeperCryptoParameters.provider)
+    val cipher = if (useCBC) cbcCipher.get() else gcmCipher.get()
 
     val keySpec = SecretKeySpec(key, "AES")
     val parameterSpec = if (useCBC) IvParameterSpec(iv) else GCMParameterSpec(16 * 8, iv)
@@ -156,13 +232,15 @@ internal fun importPublicKey(rawBytes: ByteArray): PublicKey {
 }
 
 internal fun getEciesSymmetricKey(privateKey: Key, publicKey: Key): ByteArray {
-    val ka = if (KeeperCryptoParameters.provider == null)
-        KeyAgreement.getInstance("ECDH") else
-        KeyAgreement.getInstance("ECDH", KeeperCryptoParameters.provider)
+    val ka = ecdhKeyAgreement.get()
     ka.init(privateKey)
     ka.doPhase(publicKey, true)
     val commonSecret = ka.generateSecret()
-    return KeeperCryptoParameters.sha256.digest(commonSecret)
+    return sha256Digest.get().digest(commonSecret)
+}
+
+internal fun sha256(data: ByteArray): ByteArray {
+    return sha256Digest.get().digest(data)
 }
 
 internal fun extractPublicRaw(publicKey: PublicKey): ByteArray {
@@ -170,8 +248,11 @@ internal fun extractPublicRaw(publicKey: PublicKey): ByteArray {
 }
 
 internal fun publicEncrypt(data: ByteArray, key: ByteArray): ByteArray {
-    val ephemeralKeyPair = KeeperCryptoParameters.keyGen.genKeyPair()
-    val recipientPublicKey = importPublicKey(key)
+    return publicEncrypt(data, importPublicKey(key))
+}
+
+internal fun publicEncrypt(data: ByteArray, recipientPublicKey: PublicKey): ByteArray {
+    val ephemeralKeyPair = generateKeyPair()
     val symmetricKey = getEciesSymmetricKey(ephemeralKeyPair.private, recipientPublicKey)
     val encryptedData = encrypt(data, symmetricKey)
     return extractPublicRaw(ephemeralKeyPair.public) + encryptedData
@@ -185,10 +266,11 @@ internal fun privateDecrypt(data: ByteArray, key: ByteArray): ByteArray {
 }
 
 internal fun sign(data: ByteArray, key: ByteArray): ByteArray {
-    val privateKey = importPrivateKey(key)
-    val sig = if (KeeperCryptoParameters.provider == null)
-        Signature.getInstance("SHA256withECDSA") else
-        Signature.getInstance("SHA256withECDSA", KeeperCryptoParameters.provider)
+    return sign(data, importPrivateKey(key))
+}
+
+internal fun sign(data: ByteArray, privateKey: java.security.PrivateKey): ByteArray {
+    val sig = ecdsaSignature.get()
     sig.initSign(privateKey)
     sig.update(data)
     return sig.sign()
@@ -325,7 +407,7 @@ internal fun randomSample(sampleLength: Int = 0, sampleString: String = ""): Str
     var result = ""
     val sampleLen = if (sampleLength < 0) 0 else sampleLength
     if (sampleLen > 0 && sampleString.isNotEmpty()) {
-        val secureRandom = SecureRandom.getInstanceStrong()
+        val secureRandom = secureRandom()
         val bytes = CharArray(sampleLen)
         result = (bytes.indices)
             .map {
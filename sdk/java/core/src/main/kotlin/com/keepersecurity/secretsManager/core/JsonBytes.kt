@@ -0,0 +1,52 @@
+@file:OptIn(ExperimentalSerializationApi::class)
+
+package com.keepersecurity.secretsManager.core
+
+import kotlinx.serialization.DeserializationStrategy
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.SerializationStrategy
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.decodeFromStream
+import kotlinx.serialization.json.encodeToStream
+import kotlinx.serialization.serializer
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+
+// JSON straight from and to UTF-8 bytes, without the intermediate String copy of decodeFromString/encodeToString.
+// Payloads are encoded into a per-thread buffer that starts small, as most payloads are, and is kept
+// for the next call unless it grew past RETAINED_BUFFER_SIZE.
+
+private const val INITIAL_BUFFER_SIZE = 8 * 1024
+private const val RETAINED_BUFFER_SIZE = 16 * 1024
+
+private val encodeBuffers = ThreadLocal.withInitial { ByteArrayOutputStream(INITIAL_BUFFER_SIZE) }
+
+internal inline fun <reified T> Json.decodeFromBytes(data: ByteArray): T {
+    return decodeFromBytes(serializersModule.serializer(), data)
+}
+
+internal fun <T> Json.decodeFromBytes(deserializer: DeserializationStrategy<T>, data: ByteArray): T {
+    return decodeFromStream(deserializer, ByteArrayInputStream(data))
+}
+
+internal fun Json.parseToJsonElement(data: ByteArray): JsonElement {
+    return decodeFromBytes(JsonElement.serializer(), data)
+}
+
+internal inline fun <reified T> Json.encodeToBytes(value: T): ByteArray {
+    return encodeToBytes(serializersModule.serializer(), value)
+}
+
+internal fun <T> Json.encodeToBytes(serializer: SerializationStrategy<T>, value: T): ByteArray {
+    val buffer = encodeBuffers.get()
+    buffer.reset()
+    try {
+        encodeToStream(serializer, value, buffer)
+        return buffer.toByteArray()
+    } finally {
+        if (buffer.size() > RETAINED_BUFFER_SIZE) {
+            encodeBuffers.remove()
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.keepersecurity.secretsManager.core
+
+import java.security.PublicKey
+import java.security.interfaces.ECPrivateKey
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Keys parsed once and reused by every request of the [SecretsManagerOptions] holding this context.
+ * Options copied with `copy()` or built by the same [SecretsManagerOptions.Builder] share the context.
+ */
+class KeeperCryptoContext internal constructor() {
+
+    private class ImportedPrivateKey(val der: ByteArray, val key: ECPrivateKey)
+
+    // The client private key is imported once and re-imported only when the stored key changes,
+    // server public keys are imported once per key id.
+    @Volatile
+    private var privateKey: ImportedPrivateKey? = null
+    private val serverPublicKeys = ConcurrentHashMap<Int, Pair<ByteArray, PublicKey>>()
+
+    // pre-computed transmission keys, see SecretsManagerOptions.transmissionKeyPoolSize
+    internal val transmissionKeys = TransmissionKeyPool()
+
+    internal fun privateKey(storage: KeyValueStorage): ECPrivateKey {
+        val der = storage.getBytes(KEY_PRIVATE_KEY) ?: throw Exception("Private key is missing from the storage")
+        val cached = privateKey
+        if (cached != null && cached.der.contentEquals(der)) {
+            return cached.key
+        }
+        val imported = ImportedPrivateKey(der, importPrivateKey(der))
+        privateKey = imported
+        return imported.key
+    }
+
+    internal fun serverPublicKey(keyId: Int, rawKey: ByteArray): PublicKey {
+        val cached = serverPublicKeys[keyId]
+        if (cached != null && cached.first.contentEquals(rawKey)) {
+            return cached.second
+        }
+        val imported = importPublicKey(rawKey)
+        serverPublicKeys[keyId] = Pair(rawKey, imported)
+        return imported
+    }
+}
@@ -0,0 +1,216 @@
+package com.keepersecurity.secretsManager.core
+
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.json.Json
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.TimeUnit
+
+/**
+ * Disk cache of the records of a Secrets Manager application, set [SecretsManagerOptions.recordCache] to enable.
+ *
+ * Every record is kept in its own file encrypted with the application key, listed in an index file.
+ * After a get_secret call only the new and modified records are written, and when the vault can not be reached
+ * the records are read from the cache - only the files of the requested records are read.
+ * Entries not used for `maxAgeMillis` are evicted, then the least recently used ones while the cache holds
+ * more than `maxEntries` records or `maxBytes` bytes. Files are written to a temporary file and moved into place.
+ *
+ * A cache directory holds the records of a single application, it is cleared when used by another one.
+ *
+ * @param directory Cache directory, created when missing
+ * @param maxEntries Maximum number of cached records
+ * @param maxBytes Maximum total size of the cached record files
+ * @param maxAgeMillis Records not read or written for this long are evicted
+ */
+class KeeperRecordCache @JvmOverloads constructor(
+    val directory: Path,
+    val maxEntries: Int = 10_000,
+    val maxBytes: Long = 256L * 1024 * 1024,
+    val maxAgeMillis: Long = TimeUnit.DAYS.toMillis(30)
+) {
+
+    @Serializable
+    private data class IndexEntry(val revision: Long, val size: Long, var lastAccess: Long)
+
+    @Serializable
+    private data class Index(
+        val clientId: String,
+        var appData: String? = null,
+        val entries: MutableMap<String, IndexEntry> = mutableMapOf()
+    )
+
+    // response record along with its shared folder, the record key is encrypted with the folder key
+    @Serializable
+    private data class CachedRecord(
+        val record: SecretsManagerResponseRecord,
+        val folderUid: String? = null,
+        val folderKey: String? = null
+    )
+
+    private val json = Json { ignoreUnknownKeys = true }
+    private val lock = Any()
+    private var index: Index? = null
+
+    /**
+     * Removes all cached records
+     */
+    fun clear() {
+        synchronized(lock) {
+            index?.entries?.keys?.forEach { Files.deleteIfExists(entryPath(it)) }
+            index = null
+            Files.deleteIfExists(directory.resolve(INDEX_FILE))
+        }
+    }
+
+    // saves the records of a get_secret response, `complete` - the response was not filtered
+    // so the records missing from it were removed from the application
+    internal fun store(storage: KeyValueStorage, response: SecretsManagerResponse, complete: Boolean) {
+        val appKey = storage.getBytes(KEY_APP_KEY) ?: return
+        val clientId = storage.getString(KEY_CLIENT_ID) ?: return
+        val records = response.records.orEmpty().map { CachedRecord(it) } +
+                response.folders.orEmpty().flatMap { folder ->
+                    folder.records.orEmpty().map { CachedRecord(it, folder.folderUid, folder.folderKey) }
+                }
+        synchronized(lock) {
+            val index = loadIndex(clientId)
+            val now = System.currentTimeMillis()
+            for (cached in records) {
+                val uid = cached.record.recordUid
+                val entry = index.entries[uid]
+                if (entry != null && entry.revision == cached.record.revision && Files.exists(entryPath(uid))) {
+                    entry.lastAccess = now
+                    continue
+                }
+                val data = encrypt(json.encodeToBytes(cached), appKey)
+                writeAtomically(entryPath(uid), data)
+                index.entries[uid] = IndexEntry(cached.record.revision, data.size.toLong(), now)
+            }
+            if (complete) {
+                val returned = records.mapTo(HashSet()) { it.record.recordUid }
+                index.entries.keys.filter { it !in returned }.forEach { remove(index, it) }
+            }
+            response.appData?.let { index.appData = it }
+            evict(index, now)
+            saveIndex(index)
+        }
+    }
+
+    // builds a get_secret response out of the cached records, null when nothing is cached
+    internal fun load(storage: KeyValueStorage, queryOptions: QueryOptions?): SecretsManagerResponse? {
+        val appKey = storage.getBytes(KEY_APP_KEY) ?: return null
+        val clientId = storage.getString(KEY_CLIENT_ID) ?: return null
+        synchronized(lock) {
+            val index = loadIndex(clientId)
+            val recordsFilter = queryOptions?.recordsFilter.orEmpty()
+            val uids = if (recordsFilter.isEmpty()) index.entries.keys.toList() else recordsFilter.filter { index.entries.containsKey(it) }
+            if (uids.isEmpty()) {
+                return null
+            }
+            val now = System.currentTimeMillis()
+            val records = uids.mapNotNull { uid ->
+                try {
+                    val cached = json.decodeFromBytes<CachedRecord>(decrypt(Files.readAllBytes(entryPath(uid)), appKey))
+                    index.entries[uid]?.lastAccess = now
+                    cached
+                } catch (e: Exception) {
+                    println("Cached record $uid could not be read: ${e.message}")
+                    remove(index, uid)
+                    null
+                }
+            }
+            val foldersFilter = queryOptions?.foldersFilter.orEmpty()
+            val folders = records.filter { it.folderUid != null && (foldersFilter.isEmpty() || it.folderUid in foldersFilter) }
+                .groupBy { it.folderUid!! }
+                .map { (folderUid, folderRecords) ->
+                    SecretsManagerResponseFolder(folderUid, folderRecords[0].folderKey!!, null, null, folderRecords.map { it.record })
+                }
+            val rootRecords = if (foldersFilter.isEmpty()) records.filter { it.folderUid == null }.map { it.record } else emptyList()
+            // the access times drive eviction, a later process must see them too
+            try {
+                saveIndex(index)
+            } catch (e: Exception) {
+                println("Record cache index could not be saved: ${e.message}")
+            }
+            return SecretsManagerResponse(
+                appData = index.appData,
+                encryptedAppKey = null,
+                folders = folders,
+                records = rootRecords,
+                warnings = listOf("Keeper could not be reached, the records were loaded from the offline cache")
+            )
+        }
+    }
+
+    private fun remove(index: Index, uid: String) {
+        index.entries.remove(uid)
+        Files.deleteIfExists(entryPath(uid))
+    }
+
+    private fun evict(index: Index, now: Long) {
+        index.entries.filter { now - it.value.lastAccess > maxAgeMillis }.keys.forEach { remove(index, it) }
+        var totalBytes = index.entries.values.sumOf { it.size }
+        if (index.entries.size <= maxEntries && totalBytes <= maxBytes) {
+            return
+        }
+        val leastRecentlyUsed = index.entries.entries.sortedBy { it.value.lastAccess }.map { it.key to it.value.size }
+        var count = index.entries.size
+        for ((uid, size) in leastRecentlyUsed) {
+            if (count <= maxEntries && totalBytes <= maxBytes) {
+                break
+            }
+            remove(index, uid)
+            count--
+            totalBytes -= size
+        }
+    }
+
+    private fun loadIndex(clientId: String): Index {
+        index?.let { if (it.clientId == clientId) return it }
+        Files.createDirectories(directory)
+        val indexPath = directory.resolve(INDEX_FILE)
+        val loaded = try {
+            if (Files.exists(indexPath)) json.decodeFromBytes<Index>(Files.readAllBytes(indexPath)) else null
+        } catch (e: Exception) {
+            println("Record cache index could not be read, the cache is cleared: ${e.message}")
+            null
+        }
+        val current = if (loaded != null && loaded.clientId == clientId) {
+            loaded
+        } else {
+            loaded?.entries?.keys?.forEach { Files.deleteIfExists(entryPath(it)) }
+            Index(clientId)
+        }
+        index = current
+        return current
+    }
+
+    private fun saveIndex(index: Index) {
+        writeAtomically(directory.resolve(INDEX_FILE), json.encodeToBytes(index))
+    }
+
+    private fun entryPath(recordUid: String): Path {
+        return directory.resolve("$recordUid$ENTRY_EXTENSION")
+    }
+
+    private companion object {
+        const val INDEX_FILE = "index.json"
+        const val ENTRY_EXTENSION = ".rec"
+    }
+}
+
+// writes the file next to the target and moves it into place, readers see either the old or the new content
+internal fun writeAtomically(path: Path, data: ByteArray) {
+    val temporary = Files.createTempFile(path.toAbsolutePath().parent, ".${path.fileName}", ".tmp")
+    try {
+        Files.write(temporary, data)
+        try {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } catch (e: AtomicMoveNotSupportedException) {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING)
+        }
+    } finally {
+        Files.deleteIfExists(temporary)
+    }
+}
@@ -0,0 +1,306 @@
+package com.keepersecurity.secretsManager.core
+
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.json.Json
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.DataOutputStream
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+import java.time.Instant
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Read-only snapshot of application records in a file, for processes that share the secrets of one application.
+ *
+ * One process writes the snapshot with [write], others open it with [open] - the file is memory mapped
+ * and a record is decrypted only when it is looked up. Every record is encrypted with the application key,
+ * the UID and title indexes hold keyed hashes so titles are not readable from the file. The indexes and the record
+ * table are authenticated with a key derived from the application key when the file is opened, and a looked up
+ * record is checked against the UID or title it was found by, so a modified file fails instead of returning
+ * another record. Lookups do not make network calls, call [write] again to publish fresh records.
+ */
+class KeeperSnapshot private constructor(
+    private val channel: FileChannel,
+    private val buffer: MappedByteBuffer,
+    private val appKey: ByteArray
+) : Closeable {
+
+    private val indexKey = snapshotIndexKey(appKey)
+    private val recordCount = buffer.getInt(COUNT_OFFSET)
+    private val uidIndexOffset = buffer.getLong(UID_INDEX_OFFSET).toInt()
+    private val titleIndexOffset = buffer.getLong(TITLE_INDEX_OFFSET).toInt()
+    private val recordTableOffset = buffer.getLong(RECORD_TABLE_OFFSET).toInt()
+    private val titleCount = buffer.getInt(TITLE_COUNT_OFFSET)
+    private val decrypted = AtomicReferenceArray<DecodedRecord>(recordCount)
+
+    /**
+     * Time the snapshot was written
+     */
+    val createdAt: Instant = Instant.ofEpochMilli(buffer.getLong(CREATED_AT_OFFSET))
+
+    val size: Int
+        get() = recordCount
+
+    fun getRecordByUid(recordUid: String): KeeperRecord? {
+        val ordinal = findOrdinals(uidIndexOffset, recordCount, indexHash(indexKey, UID_TAG, recordUid)).firstOrNull() ?: return null
+        val decoded = record(ordinal)
+        if (decoded.record.recordUid != recordUid) {
+            throw Exception("Snapshot record $ordinal does not match its UID index entry")
+        }
+        return decoded.record
+    }
+
+    fun getSecretsByTitle(recordTitle: String): List<KeeperRecord> {
+        return findOrdinals(titleIndexOffset, titleCount, indexHash(indexKey, TITLE_TAG, recordTitle)).sorted().map { ordinal ->
+            val decoded = record(ordinal)
+            if (decoded.title != recordTitle) {
+                throw Exception("Snapshot record $ordinal does not match its title index entry")
+            }
+            decoded.record
+        }
+    }
+
+    fun getSecretByTitle(recordTitle: String): KeeperRecord? {
+        return getSecretsByTitle(recordTitle).firstOrNull()
+    }
+
+    /**
+     * Decrypts all records of the snapshot
+     */
+    fun getRecords(): List<KeeperRecord> {
+        return (0 until recordCount).map { record(it).record }
+    }
+
+    override fun close() {
+        channel.close()
+    }
+
+    // the title as stored, the returned record is mutable
+    private class DecodedRecord(val record: KeeperRecord, val title: String)
+
+    private fun record(ordinal: Int): DecodedRecord {
+        decrypted.get(ordinal)?.let { return it }
+        val entry = recordTableOffset + ordinal * RECORD_TABLE_ENTRY_SIZE
+        val data = ByteArray(buffer.getInt(entry + 8))
+        val view = buffer.duplicate()
+        view.position(buffer.getLong(entry).toInt())
+        view.get(data)
+        val snapshotRecord = snapshotJson.decodeFromBytes<SnapshotRecord>(decrypt(data, appKey))
+        val record = DecodedRecord(snapshotRecord.toRecord(), snapshotRecord.data.title)
+        return if (decrypted.compareAndSet(ordinal, null, record)) record else decrypted.get(ordinal)!!
+    }
+
+    // binary search over the sorted (hash, ordinal) entries, returns the ordinals of all matching entries
+    private fun findOrdinals(indexOffset: Int, count: Int, hash: ByteArray): List<Int> {
+        var low = 0
+        var high = count - 1
+        var found = -1
+        while (low <= high) {
+            val middle = (low + high) ushr 1
+            val comparison = compareHash(indexOffset + middle * INDEX_ENTRY_SIZE, hash)
+            when {
+                comparison < 0 -> low = middle + 1
+                comparison > 0 -> high = middle - 1
+                else -> {
+                    found = middle
+                    high = middle - 1
+                }
+            }
+        }
+        if (found < 0) {
+            return emptyList()
+        }
+        val ordinals = mutableListOf<Int>()
+        var i = found
+        while (i < count && compareHash(indexOffset + i * INDEX_ENTRY_SIZE, hash) == 0) {
+            ordinals.add(buffer.getInt(indexOffset + i * INDEX_ENTRY_SIZE + HASH_SIZE))
+            i++
+        }
+        return ordinals
+    }
+
+    private fun compareHash(position: Int, hash: ByteArray): Int {
+        for (i in 0 until HASH_SIZE) {
+            val comparison = (buffer.get(position + i).toInt() and 0xff) - (hash[i].toInt() and 0xff)
+            if (comparison != 0) {
+                return comparison
+            }
+        }
+        return 0
+    }
+
+    @Serializable
+    private data class SnapshotFile(
+        val fileUid: String,
+        val fileKey: String,
+        val data: KeeperFileData,
+        val url: String,
+        val thumbnailUrl: String?
+    )
+
+    @Serializable
+    private data class SnapshotRecord(
+        val recordUid: String,
+        val recordKey: String,
+        val folderUid: String?,
+        val folderKey: String?,
+        val innerFolderUid: String?,
+        val revision: Long,
+        val data: KeeperRecordData,
+        val files: List<SnapshotFile>?
+    ) {
+        fun toRecord(): KeeperRecord {
+            return KeeperRecord(
+                base64ToBytes(recordKey),
+                recordUid,
+                folderUid,
+                folderKey?.let { base64ToBytes(it) },
+                innerFolderUid,
+                data,
+                revision,
+                files?.map { KeeperFile(base64ToBytes(it.fileKey), it.fileUid, it.data, it.url, it.thumbnailUrl) }
+            )
+        }
+    }
+
+    companion object {
+        private const val MAGIC = 0x4b534d53 // KSMS
+        private const val VERSION = 2
+        private const val HASH_SIZE = 16
+        private const val MAC_SIZE = 64
+        private const val INDEX_ENTRY_SIZE = HASH_SIZE + 4
+        private const val RECORD_TABLE_ENTRY_SIZE = 12
+        private const val COUNT_OFFSET = 8
+        private const val TITLE_COUNT_OFFSET = 12
+        private const val CREATED_AT_OFFSET = 16
+        private const val UID_INDEX_OFFSET = 24
+        private const val TITLE_INDEX_OFFSET = 32
+        private const val RECORD_TABLE_OFFSET = 40
+        private const val HEADER_SIZE = 48
+        private const val UID_TAG = "uid:"
+        private const val TITLE_TAG = "title:"
+
+        private val snapshotJson = Json { ignoreUnknownKeys = true }
+
+        /**
+         * Opens a snapshot written by [write], the storage must hold the key of the same application
+         */
+        @JvmStatic
+        fun open(path: Path, storage: KeyValueStorage): KeeperSnapshot {
+            val appKey = storage.getBytes(KEY_APP_KEY) ?: throw Exception("App key is missing from the storage")
+            val channel = FileChannel.open(path, StandardOpenOption.READ)
+            try {
+                val buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                    throw Exception("$path is not a supported snapshot file")
+                }
+                // header, indexes and record table are followed by their MAC
+                val macOffset = buffer.getLong(RECORD_TABLE_OFFSET) + buffer.getInt(COUNT_OFFSET).toLong() * RECORD_TABLE_ENTRY_SIZE
+                if (macOffset < HEADER_SIZE || macOffset + MAC_SIZE > buffer.capacity()) {
+                    throw Exception("$path is not a supported snapshot file")
+                }
+                val covered = buffer.duplicate()
+                covered.position(0)
+                covered.limit(macOffset.toInt())
+                val mac = ByteArray(MAC_SIZE)
+                val stored = buffer.duplicate()
+                stored.position(macOffset.toInt())
+                stored.get(mac)
+                if (!MessageDigest.isEqual(mac, hmac(snapshotMacKey(appKey), covered))) {
+                    throw Exception("$path was modified or written for another application")
+                }
+                return KeeperSnapshot(channel, buffer, appKey)
+            } catch (e: Exception) {
+                channel.close()
+                throw e
+            }
+        }
+
+        /**
+         * Writes the records to the snapshot file, replacing it atomically
+         */
+        @JvmStatic
+        fun write(path: Path, secrets: KeeperSecrets, storage: KeyValueStorage) {
+            val appKey = storage.getBytes(KEY_APP_KEY) ?: throw Exception("App key is missing from the storage")
+            val indexKey = snapshotIndexKey(appKey)
+            val records = secrets.records
+            val encrypted = records.map { record ->
+                val snapshotRecord = SnapshotRecord(
+                    record.recordUid,
+                    bytesToBase64(record.recordKey),
+                    record.folderUid,
+                    record.folderKey?.let { bytesToBase64(it) },
+                    record.innerFolderUid,
+                    record.revision,
+                    record.data,
+                    record.files?.map { SnapshotFile(it.fileUid, bytesToBase64(it.fileKey), it.data, it.url, it.thumbnailUrl) }
+                )
+                encrypt(snapshotJson.encodeToBytes(snapshotRecord), appKey)
+            }
+            val uidIndex = records.mapIndexed { i, record -> indexHash(indexKey, UID_TAG, record.recordUid) to i }
+                .sortedWith { a, b -> compareHashes(a.first, b.first) }
+            val titleIndex = records.mapIndexed { i, record -> indexHash(indexKey, TITLE_TAG, record.data.title) to i }
+                .sortedWith { a, b -> compareHashes(a.first, b.first).let { if (it != 0) it else a.second - b.second } }
+
+            val uidIndexOffset = HEADER_SIZE.toLong()
+            val titleIndexOffset = uidIndexOffset + uidIndex.size * INDEX_ENTRY_SIZE
+            val recordTableOffset = titleIndexOffset + titleIndex.size * INDEX_ENTRY_SIZE
+            var recordOffset = recordTableOffset + records.size * RECORD_TABLE_ENTRY_SIZE + MAC_SIZE
+            if (recordOffset + encrypted.sumOf { it.size.toLong() } > Int.MAX_VALUE) {
+                throw Exception("Snapshot would exceed 2GB")
+            }
+
+            val bytes = ByteArrayOutputStream()
+            val output = DataOutputStream(bytes)
+            output.writeInt(MAGIC)
+            output.writeInt(VERSION)
+            output.writeInt(records.size)
+            output.writeInt(titleIndex.size)
+            output.writeLong(System.currentTimeMillis())
+            output.writeLong(uidIndexOffset)
+            output.writeLong(titleIndexOffset)
+            output.writeLong(recordTableOffset)
+            for ((hash, ordinal) in uidIndex + titleIndex) {
+                output.write(hash)
+                output.writeInt(ordinal)
+            }
+            for (data in encrypted) {
+                output.writeLong(recordOffset)
+                output.writeInt(data.size)
+                recordOffset += data.size
+            }
+            output.flush()
+            output.write(hmac(snapshotMacKey(appKey), ByteBuffer.wrap(bytes.toByteArray())))
+            encrypted.forEach { output.write(it) }
+            output.flush()
+            writeAtomically(path, bytes.toByteArray())
+        }
+
+        private fun snapshotIndexKey(appKey: ByteArray): ByteArray {
+            return hash(appKey, "KEEPER_SECRETS_MANAGER_SNAPSHOT_INDEX")
+        }
+
+        private fun snapshotMacKey(appKey: ByteArray): ByteArray {
+            return hash(appKey, "KEEPER_SECRETS_MANAGER_SNAPSHOT_MAC")
+        }
+
+        private fun indexHash(indexKey: ByteArray, tag: String, value: String): ByteArray {
+            return hash(indexKey, tag + value).copyOf(HASH_SIZE)
+        }
+
+        private fun compareHashes(a: ByteArray, b: ByteArray): Int {
+            for (i in 0 until HASH_SIZE) {
+                val comparison = (a[i].toInt() and 0xff) - (b[i].toInt() and 0xff)
+                if (comparison != 0) {
+                    return comparison
+                }
+            }
+            return 0
+        }
+    }
+}
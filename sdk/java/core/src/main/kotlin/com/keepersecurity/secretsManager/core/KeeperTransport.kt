@@ -0,0 +1,145 @@
+package com.keepersecurity.secretsManager.core
+
+import java.io.IOException
+import java.io.InputStream
+import java.net.HttpURLConnection
+import java.net.URI
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import javax.net.ssl.HttpsURLConnection
+import javax.net.ssl.SSLSocketFactory
+
+/**
+ * Sends the encrypted and signed payload to the Secrets Manager endpoint.
+ * Set [SecretsManagerOptions.transport] to replace the default HTTPS transport.
+ */
+interface KeeperTransport {
+    fun post(url: String, transmissionKey: TransmissionKey, payload: EncryptedPayload): KeeperHttpResponse
+}
+
+/**
+ * Fetches the content of [KeeperFile] URLs for [downloadFiles], [HttpKeeperTransport] by default.
+ */
+interface KeeperFileTransport {
+    /**
+     * Sends a GET request to the url and passes the response body to `read`, which consumes it.
+     * Throws when the server does not respond with 200.
+     */
+    fun download(url: String, read: (InputStream) -> Unit)
+}
+
+// Adapts the legacy QueryFunction option to the transport interface
+internal class QueryFunctionTransport(private val queryFunction: QueryFunction) : KeeperTransport {
+    override fun post(url: String, transmissionKey: TransmissionKey, payload: EncryptedPayload): KeeperHttpResponse {
+        return queryFunction.invoke(url, transmissionKey, payload)
+    }
+}
+
+/**
+ * @param connectTimeoutMillis TCP connect timeout
+ * @param readTimeoutMillis Socket read timeout
+ * @param maxConnectionsPerHost Maximum number of connections open to a single host at the same time
+ * @param allowUnverifiedCertificate Skip server certificate validation - for testing only
+ * @param acquireTimeoutMillis Longest wait for a free connection slot, 0 - wait until one is free.
+ * File transfers hold their slot for the whole transfer, the bulk downloads of [downloadFiles] always wait until one is free.
+ */
+data class HttpTransportOptions @JvmOverloads constructor(
+    val connectTimeoutMillis: Int = 10_000,
+    val readTimeoutMillis: Int = 60_000,
+    val maxConnectionsPerHost: Int = 8,
+    val allowUnverifiedCertificate: Boolean = false,
+    val acquireTimeoutMillis: Int = 30_000
+)
+
+/**
+ * Default HTTPS transport of the Secrets Manager requests and the file downloads.
+ *
+ * Connections are reused through the JDK keep-alive cache: every response body is read to the end and closed,
+ * which parks the socket for the next request to the same host instead of paying a new TCP and TLS handshake.
+ * The number of connections per host is bounded by [HttpTransportOptions.maxConnectionsPerHost],
+ * callers over the limit wait for a free slot (see [HttpTransportOptions.acquireTimeoutMillis]).
+ * Idle sockets are evicted by the keep-alive cache once the server keep-alive timeout expires
+ * (`http.keepAlive` and `http.maxConnections` system properties apply).
+ */
+class HttpKeeperTransport @JvmOverloads constructor(
+    val transportOptions: HttpTransportOptions = HttpTransportOptions()
+) : KeeperTransport, KeeperFileTransport {
+
+    // one socket factory per transport so TLS sessions and pooled sockets are shared between requests
+    private val socketFactory: SSLSocketFactory? =
+        if (transportOptions.allowUnverifiedCertificate) trustAllSocketFactory() else null
+    private val hostPermits = ConcurrentHashMap<String, Semaphore>()
+
+    override fun post(url: String, transmissionKey: TransmissionKey, payload: EncryptedPayload): KeeperHttpResponse {
+        return execute(url) { connection ->
+            connection.requestMethod = "POST"
+            connection.doOutput = true
+            connection.setFixedLengthStreamingMode(payload.payload.size)
+            connection.setRequestProperty("PublicKeyId", transmissionKey.publicKeyId.toString())
+            connection.setRequestProperty("TransmissionKey", bytesToBase64(transmissionKey.encryptedKey))
+            connection.setRequestProperty("Authorization", "Signature ${bytesToBase64(payload.signature)}")
+            connection.outputStream.use { it.write(payload.payload) }
+            readResponse(connection)
+        }
+    }
+
+    // bulk downloads queue behind the connection limit, so they wait for a slot as long as it takes
+    override fun download(url: String, read: (InputStream) -> Unit) {
+        fetch(url, true, read)
+    }
+
+    internal fun <T> fetch(url: String, waitForSlot: Boolean, read: (InputStream) -> T): T {
+        return execute(url, waitForSlot) { connection ->
+            connection.requestMethod = "GET"
+            if (connection.responseCode != HttpURLConnection.HTTP_OK) {
+                val data = connection.errorStream?.use { it.readBytes() } ?: ByteArray(0)
+                throw Exception(String(data))
+            }
+            // the stream is read to the end so the connection goes back to the keep-alive cache
+            connection.inputStream.use(read)
+        }
+    }
+
+    // waitForSlot - wait for a free connection slot as long as it takes, for the queued transfers of bulk downloads
+    internal fun <T> execute(url: String, waitForSlot: Boolean = false, block: (HttpsURLConnection) -> T): T {
+        val uri = URI.create(url)
+        val permits = hostPermits.computeIfAbsent(uri.authority) { Semaphore(transportOptions.maxConnectionsPerHost, true) }
+        if (waitForSlot || transportOptions.acquireTimeoutMillis <= 0) {
+            permits.acquire()
+        } else if (!permits.tryAcquire(transportOptions.acquireTimeoutMillis.toLong(), TimeUnit.MILLISECONDS)) {
+            throw IOException("Timed out waiting for a free connection to ${uri.host}")
+        }
+        try {
+            val connection = uri.toURL().openConnection() as HttpsURLConnection
+            socketFactory?.let { connection.sslSocketFactory = it }
+            connection.connectTimeout = transportOptions.connectTimeoutMillis
+            connection.readTimeout = transportOptions.readTimeoutMillis
+            connection.useCaches = false
+            return block(connection)
+        } finally {
+            permits.release()
+        }
+    }
+
+    companion object {
+        private val verified by lazy { HttpKeeperTransport() }
+        private val unverified by lazy { HttpKeeperTransport(HttpTransportOptions(allowUnverifiedCertificate = true)) }
+
+        /**
+         * Process wide transport used when [SecretsManagerOptions] does not specify one
+         */
+        @JvmStatic
+        fun shared(allowUnverifiedCertificate: Boolean): HttpKeeperTransport {
+            return if (allowUnverifiedCertificate) unverified else verified
+        }
+    }
+}
+
+internal fun readResponse(connection: HttpURLConnection): KeeperHttpResponse {
+    val statusCode = connection.responseCode
+    // reading the body to EOF and closing the stream returns the socket to the keep-alive cache
+    val stream = connection.errorStream ?: connection.inputStream
+    val data = stream?.use { it.readBytes() } ?: ByteArray(0)
+    return KeeperHttpResponse(statusCode, data)
+}
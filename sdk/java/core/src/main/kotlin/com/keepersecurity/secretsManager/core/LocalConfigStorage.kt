@@ -6,23 +6,127 @@ import kotlinx.serialization.decodeFromString
 import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.Json
 import java.io.*
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
 import java.util.*
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
 import kotlin.collections.HashMap
 
 fun saveCachedValue(data: ByteArray) {
-    val fos = FileOutputStream("cache.dat")
-    fos.write(data)
-    fos.close()
+    CachedValueWriter.default.writeNow(data)
 }
 
 fun getCachedValue(): ByteArray {
-    try {
-        val fis = FileInputStream("cache.dat")
-        val bytes = fis.readBytes()
-        fis.close()
-        return bytes
-    } catch (e: Exception) {
-        throw Exception("Cached value does not exist")
+    return CachedValueWriter.default.read() ?: throw Exception("Cached value does not exist")
+}
+
+/**
+ * Writes the value saved by [cachingPostFunction] in the background to disk and syncs it
+ */
+fun flushCachedValue() {
+    CachedValueWriter.default.flush()
+}
+
+private const val CACHE_FILE = "cache.dat"
+private const val CACHE_SYNC_INTERVAL_MILLIS = 1000L
+
+// Write-behind persistence of cache.dat for cachingPostFunction. The request thread only swaps in the latest value,
+// a background thread writes it - values saved while a write is pending replace it, so only the latest is written.
+// A value stays pending, and is what readers get, until it is completely written. The file is replaced atomically,
+// so readers never see a partly written file. Written data is synced to the disk on a schedule and everything
+// pending is flushed when the JVM shuts down.
+internal class CachedValueWriter(private val path: Path, private val executor: Executor) {
+
+    private val pending = AtomicReference<ByteArray?>()
+    private val lock = Any()
+    @Volatile
+    private var unsynced = false
+
+    fun submit(data: ByteArray) {
+        if (pending.getAndSet(data) == null) {
+            executor.execute { drain() }
+        }
+    }
+
+    fun writeNow(data: ByteArray) {
+        synchronized(lock) {
+            val superseded = pending.get()
+            write(data)
+            pending.compareAndSet(superseded, null)
+        }
+    }
+
+    // pending value or the content of the file, null when neither exists
+    fun read(): ByteArray? {
+        pending.get()?.let { return it }
+        return try {
+            Files.readAllBytes(path)
+        } catch (e: Exception) {
+            null
+        }
+    }
+
+    fun pendingValue(): ByteArray? {
+        return pending.get()
+    }
+
+    fun flush() {
+        drain()
+        sync()
+    }
+
+    private fun drain() {
+        synchronized(lock) {
+            while (true) {
+                val data = pending.get() ?: return
+                try {
+                    write(data)
+                } catch (e: Exception) {
+                    println("Cached value could not be saved: ${e.message}")
+                }
+                // a value submitted during the write is still pending and written by the next iteration
+                if (pending.compareAndSet(data, null)) {
+                    return
+                }
+            }
+        }
+    }
+
+    private fun write(data: ByteArray) {
+        writeAtomically(path, data)
+        unsynced = true
+    }
+
+    private fun sync() {
+        synchronized(lock) {
+            if (!unsynced) {
+                return
+            }
+            try {
+                RandomAccessFile(path.toFile(), "rw").use { it.fd.sync() }
+                unsynced = false
+            } catch (e: Exception) {
+                println("Cached value could not be synced: ${e.message}")
+            }
+        }
+    }
+
+    companion object {
+        val default: CachedValueWriter by lazy {
+            val scheduler = Executors.newSingleThreadScheduledExecutor { runnable ->
+                val thread = Thread(runnable, "keeper-cache-writer")
+                thread.isDaemon = true
+                thread
+            }
+            val writer = CachedValueWriter(Paths.get(CACHE_FILE), scheduler)
+            scheduler.scheduleWithFixedDelay({ writer.sync() }, CACHE_SYNC_INTERVAL_MILLIS, CACHE_SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)
+            Runtime.getRuntime().addShutdownHook(Thread { writer.flush() })
+            writer
+        }
     }
 }
 
@@ -3,10 +3,11 @@
 package com.keepersecurity.secretsManager.core
 
 import kotlinx.serialization.ExperimentalSerializationApi
-import kotlinx.serialization.SerialName
 import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.Json
-import kotlin.reflect.full.memberProperties
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonObject
+import java.util.concurrent.ConcurrentHashMap
 
 @ExperimentalSerializationApi
 fun getValue(secrets: KeeperSecrets, notation: String): String {
@@ -19,7 +20,7 @@ fun getValue(secrets: KeeperSecrets, notation: String): String {
         throw Exception("Invalid notation $notation")
     val recordToken = parsedNotation[1].text?.first ?: // UID or Title
         throw Exception("Invalid notation $notation")
-    val record = secrets.records.find { (it.recordUid == recordToken) || (it.data.title == recordToken) } ?:
+    val record = secrets.getRecordByUid(recordToken) ?: secrets.getSecretByTitle(recordToken) ?:
         throw Exception("Record '$recordToken' not found")
 
     val parameter = parsedNotation[2].parameter?.first
@@ -35,8 +36,8 @@ fun getValue(secrets: KeeperSecrets, notation: String): String {
                 throw Exception("Notation error - Missing required parameter: filename or file UID for files in record '$recordToken'")
             if (record.files.isNullOrEmpty())
                 throw Exception("Notation error - Record $recordToken has no file attachments.")
-            // file searches do not use indexes and rely on unique file names or fileUid
-            val files = record.files.filter { (it.data.name == parameter) || (it.data.title == parameter) || (it.fileUid == parameter) }
+            // file notations take no [index] - the name, title or fileUid must match a single file (record file index)
+            val files = record.findFiles(parameter)
             if (files.size > 1)
                 throw Exception("Notation error - Record $recordToken has multiple files matching the search criteria '$parameter'")
             if (files.isEmpty())
@@ -102,7 +103,7 @@ fun getFile(secrets: KeeperSecrets, notation: String): KeeperFile {
     val (record, queryParts) = getRecord(secrets, notation)
     if (queryParts[1] == "file") {
         val fileId = queryParts[2]
-        return record.files?.find { x -> x.data.name == fileId || x.data.title == fileId || x.fileUid == fileId }
+        return record.findFiles(fileId).firstOrNull()
             ?: throw Exception("File $fileId not found in the record ${record.recordUid}")
     } else {
         throw Exception("Notation should include file tag")
@@ -128,8 +129,123 @@ private fun getRecord(secrets: KeeperSecrets, notation: String): RecordAndNotati
     return RecordAndNotation(record, queryParts)
 }
 
-internal fun fieldType(field: KeeperRecordField): String {
-    return (field::class.annotations.find { x -> x is SerialName } as SerialName).value
+// notation parsed and validated once, see compileNotation
+internal class CompiledNotation(
+    val notation: String,
+    val recordToken: String,                // UID or Title
+    val selector: String,                   // type|title|notes or file|field|custom_field
+    val parameter: String?,
+    val index1: Pair<String, String>?,
+    val index2: Pair<String, String>?
+) {
+    val isRecordUid: Boolean = recordToken.matches(RECORD_UID_REGEX)
+}
+
+private val RECORD_UID_REGEX = Regex("""^[A-Za-z0-9_-]{22}$""")
+private const val COMPILED_NOTATIONS_LIMIT = 4096
+private val compiledNotations = ConcurrentHashMap<String, CompiledNotation>()
+
+// parses the notation, the result is cached by the notation string - integrations resolve the same notations repeatedly
+internal fun compileNotation(notation: String): CompiledNotation {
+    compiledNotations[notation]?.let { return it }
+
+    val parsedNotation = parseNotation(notation) // prefix, record, selector, footer
+    if (parsedNotation.size < 3)
+        throw Exception("Invalid notation '$notation'")
+
+    val selector = parsedNotation[2].text?.first ?: // type|title|notes or file|field|custom_field
+        throw Exception("Invalid notation '$notation'")
+    val recordToken = parsedNotation[1].text?.first ?: // UID or Title
+        throw Exception("Invalid notation '$notation'")
+
+    val compiled = CompiledNotation(
+        notation,
+        recordToken,
+        selector,
+        parsedNotation[2].parameter?.first,
+        parsedNotation[2].index1,
+        parsedNotation[2].index2
+    )
+    if (compiledNotations.size >= COMPILED_NOTATIONS_LIMIT) {
+        compiledNotations.clear()
+    }
+    compiledNotations[notation] = compiled
+    return compiled
+}
+
+// extracts the notation value(s) from the single record matching the notation record token
+@ExperimentalSerializationApi
+internal fun getNotationValues(notation: CompiledNotation, records: List<KeeperRecord>): List<String> {
+    val result = mutableListOf<String>()
+    val recordToken = notation.recordToken
+    val selector = notation.selector
+
+    if (records.size > 1)
+        throw Exception("Notation error - multiple records match record '$recordToken'")
+    if (records.isEmpty())
+        throw Exception("Notation error - no records match record '$recordToken'")
+
+    val record = records[0]
+    val parameter = notation.parameter
+    val index1 = notation.index1?.first
+
+    when (selector.lowercase()) {
+        "type" -> result.add(record.data.type)
+        "title" -> result.add(record.data.title)
+        "notes" -> if (record.data.notes != null) result.add(record.data.notes!!)
+        "file" -> {
+            if (parameter == null)
+                throw Exception("Notation error - Missing required parameter: filename or file UID for files in record '$recordToken'")
+            if ((record.files?.size ?: 0) < 1)
+                throw Exception("Notation error - Record $recordToken has no file attachments.")
+            val files = record.findFiles(parameter)
+            // file notations take no [index] - the name, title or fileUid must match a single file (record file index)
+            if (files.size > 1)
+                throw Exception("Notation error - Record $recordToken has multiple files matching the search criteria '$parameter'")
+            if (files.isEmpty())
+                throw Exception("Notation error - Record $recordToken has no files matching the search criteria '$parameter'")
+            val contents = downloadFile(files[0])
+            val text = webSafe64FromBytes(contents)
+            result.add(text)
+        }
+        "field", "custom_field" -> {
+            if (parameter == null)
+                throw Exception("Notation error - Missing required parameter for the field (type or label): ex. /field/type or /custom_field/MyLabel")
+
+            val fields = when(selector.lowercase()) {
+                "field" -> record.data.fields
+                "custom_field" -> record.data.custom ?: mutableListOf<KeeperRecordField>()
+                else -> throw Exception("Notation error - Expected /field or /custom_field but found /$selector")
+            }
+
+            val flds = fields.filter { parameter == fieldType(it) || parameter == it.label }
+            if (flds.size > 1)
+                throw Exception("Notation error - Record $recordToken has multiple fields matching the search criteria '$parameter'")
+            if (flds.isEmpty())
+                throw Exception("Notation error - Record $recordToken has no fields matching the search criteria '$parameter'")
+            val field = flds[0]
+
+            val idx = index1?.toIntOrNull() ?: -1 // -1 full value
+            // valid only if [] or missing - ex. /field/phone or /field/phone[]
+            if (idx == -1 && !(notation.index1?.second.isNullOrEmpty() || notation.index1?.second == "[]"))
+                throw Exception("Notation error - Invalid field index $idx")
+
+            val valuesCount = getFieldValuesCount(field)
+            if (idx >= valuesCount)
+                throw Exception("Notation error - Field index out of bounds $idx >= $valuesCount for field $parameter")
+
+            val objPropertyName = notation.index2?.first
+
+            val res = getFieldStringValues(field, idx, objPropertyName)
+            val expectedSize = if (idx >= 0) 1 else valuesCount
+            if (res.size != expectedSize)
+                println("Notation warning - extracted ${res.size} out of $valuesCount values for '$objPropertyName' property.")
+            if (res.isNotEmpty())
+                result.addAll(res)
+        }
+        else -> throw Exception("Invalid notation '${notation.notation}'")
+    }
+    return result
 }
 
 @ExperimentalSerializationApi
@@ -178,6 +294,7 @@ internal fun getFieldValuesCount(field: KeeperRecordField): Int {
         is SecureNote -> field.value.size
         is SecurityQuestions -> field.value.size
         is Text -> field.value.size
+        is UnknownField -> field.valueElements().size
         is TrafficEncryptionKey -> field.value.size
         is TrafficEncryptionSeed -> field.value.size
         is Url -> field.value.size
@@ -195,10 +312,10 @@ internal fun getFieldStringValues(field: KeeperRecordField, index: Int = -1, pro
         is AppFillers -> if (index >= field.value.size) emptyRes
             else if (index < 0) {
                 if (property == null) field.value.map { Json.encodeToString(it) }.toList()
-                else field.value.map { getObjectProperty(it, property) }.toList()
+                else field.value.map { getValueProperty(it, property) }.toList()
             } else {
                 if (property == null) listOf(Json.encodeToString(field.value[index]))
-                else listOf(getObjectProperty(field.value[index], property))
+                else listOf(getValueProperty(field.value[index], property))
             }
         is AccountNumber -> if (index >= field.value.size || property != null) emptyRes
             else if (index < 0) field.value else listOf(field.value[index])
@@ -207,18 +324,18 @@ internal fun getFieldStringValues(field: KeeperRecordField, index: Int = -1, pro
         is Addresses -> if (index >= field.value.size) emptyRes
             else if (index < 0) {
                 if (property == null) field.value.map { Json.encodeToString(it) }.toList()
-                else field.value.map { getObjectProperty(it, property) }.toList()
+                else field.value.map { getValueProperty(it, property) }.toList()
             } else {
                 if (property == null) listOf(Json.encodeToString(field.value[index]))
-                else listOf(getObjectProperty(field.value[index], property))
+                else listOf(getValueProperty(field.value[index], property))
             }
         is BankAccounts -> if (index >= field.value.size) emptyRes
         else if (index < 0) {
             if (property == null) field.value.map { Json.encodeToString(it) }.toList()
-            else field.value.map { getObjectProperty(it, property) }.toList()
+            else field.value.map { getValueProperty(it, property) }.toList()
         } else {
             if (property == null) listOf(Json.encodeToString(field.value[index]))
-            else listOf(getObjectProperty(field.value[index], property))
+            else listOf(getValueProperty(field.value[index], property))
         }
         is BirthDate -> if (index >= field.value.size || property != null) emptyRes
             else if (index < 0) field.value.map { it.toString() }.toList() else listOf(field.value[index].toString())
@@ -247,10 +364,10 @@ internal fun getFieldStringValues(field: KeeperRecordField, index: Int = -1, pro
         is Hosts -> if (index >= field.value.size) emptyRes
             else if (index < 0) {
                 if (property == null) field.value.map { Json.encodeToString(it) }.toList()
-                else field.value.map { getObjectProperty(it, property) }.toList()
+                else field.value.map { getValueProperty(it, property) }.toList()
             } else {
                 if (property == null) listOf(Json.encodeToString(field.value[index]))
-                else listOf(getObjectProperty(field.value[index], property))
+                else listOf(getValueProperty(field.value[index], property))
             }
         is IsSsidHidden -> if (index >= field.value.size || property != null) emptyRes
             else if (index < 0) field.value.map { it.toString() }.toList() else listOf(field.value[index].toString())
@@ -265,10 +382,10 @@ internal fun getFieldStringValues(field: KeeperRecordField, index: Int = -1, pro
         is Names -> if (index >= field.value.size) emptyRes
             else if (index < 0) {
                 if (property == null) field.value.map { Json.encodeToString(it) }.toList()
-                else field.value.map { getObjectProperty(it, property) }.toList()
+                else field.value.map { getValueProperty(it, property) }.toList()
             } else {
                 if (property == null) listOf(Json.encodeToString(field.value[index]))
-                else listOf(getObjectProperty(field.value[index], property))
+                else listOf(getValueProperty(field.value[index], property))
             }
         is OneTimeCode -> if (index >= field.value.size || property != null) emptyRes
             else if (index < 0) field.value else listOf(field.value[index])
@@ -277,62 +394,62 @@ internal fun getFieldStringValues(field: KeeperRecordField, index: Int = -1, pro
         is PamHostnames -> if (index >= field.value.size) emptyRes
             else if (index < 0) {
                 if (property == null) field.value.map { Json.encodeToString(it) }.toList()
-                else field.value.map { getObjectProperty(it, property) }.toList()
+                else field.value.map { getValueProperty(it, property) }.toList()
             } else {
                 if (property == null) listOf(Json.encodeToString(field.value[index]))
-                else listOf(getObjectProperty(field.value[index], property))
+                else listOf(getValueProperty(field.value[index], property))
             }
         is PamProvider -> if (index >= field.value.size || property != null) emptyRes
             else if (index < 0) field.value else listOf(field.value[index])
         is PamRemoteBrowserSettings -> if (index >= field.value.size) emptyRes
             else if (index < 0) {
                 if (property == null) field.value.map { Json.encodeToString(it) }.toList()
-                else field.value.map { getObjectProperty(it, property) }.toList()
+                else field.value.map { getValueProperty(it, property) }.toList()
             } else {
                 if (property == null) listOf(Json.encodeToString(field.value[index]))
-                else listOf(getObjectProperty(field.value[index], property))
+                else listOf(getValueProperty(field.value[index], property))
             }
         is PamResources -> if (index >= field.value.size) emptyRes
             else if (index < 0) {
                 if (property == null) field.value.map { Json.encodeToString(it) }.toList()
-                else field.value.map { getObjectProperty(it, property) }.toList()
+                else field.value.map { getValueProperty(it, property) }.toList()
             } else {
                 if (property == null) listOf(Json.encodeToString(field.value[index]))
-                else listOf(getObjectProperty(field.value[index], property))
+                else listOf(getValueProperty(field.value[index], property))
             }
         is PamSettings -> if (index >= field.value.size) emptyRes
             else if (index < 0) {
                 if (property == null) field.value.map { Json.encodeToString(it) }.toList()
-                else field.value.map { getObjectProperty(it, property) }.toList()
+                else field.value.map { getValueProperty(it, property) }.toList()
             } else {
                 if (property == null) listOf(Json.encodeToString(field.value[index]))
-                else listOf(getObjectProperty(field.value[index], property))
+                else listOf(getValueProperty(field.value[index], property))
             }
         is Passkeys -> if (index >= field.value.size) emptyRes
             else if (index < 0) {
                 if (property == null) field.value.map { Json.encodeToString(it) }.toList()
-                else field.value.map { getObjectProperty(it, property) }.toList()
+                else field.value.map { getValueProperty(it, property) }.toList()
             } else {
                 if (property == null) listOf(Json.encodeToString(field.value[index]))
-                else listOf(getObjectProperty(field.value[index], property))
+                else listOf(getValueProperty(field.value[index], property))
             }
         is Password -> if (index >= field.value.size || property != null) emptyRes
             else if (index < 0) field.value else listOf(field.value[index])
         is PaymentCards -> if (index >= field.value.size) emptyRes
             else if (index < 0) {
                 if (property == null) field.value.map { Json.encodeToString(it) }.toList()
-                else field.value.map { getObjectProperty(it, property) }.toList()
+                else field.value.map { getValueProperty(it, property) }.toList()
             } else {
                 if (property == null) listOf(Json.encodeToString(field.value[index]))
-                else listOf(getObjectProperty(field.value[index], property))
+                else listOf(getValueProperty(field.value[index], property))
             }
         is Phones -> if (index >= field.value.size) emptyRes
             else if (index < 0) {
                 if (property == null) field.value.map { Json.encodeToString(it) }.toList()
-                else field.value.map { getObjectProperty(it, property) }.toList()
+                else field.value.map { getValueProperty(it, property) }.toList()
             } else {
                 if (property == null) listOf(Json.encodeToString(field.value[index]))
-                else listOf(getObjectProperty(field.value[index], property))
+                else listOf(getValueProperty(field.value[index], property))
             }
         is PinCode -> if (index >= field.value.size || property != null) emptyRes
             else if (index < 0) field.value else listOf(field.value[index])
@@ -343,31 +460,38 @@ internal fun getFieldStringValues(field: KeeperRecordField, index: Int = -1, pro
         is Schedules -> if (index >= field.value.size) emptyRes
             else if (index < 0) {
                 if (property == null) field.value.map { Json.encodeToString(it) }.toList()
-                else field.value.map { getObjectProperty(it, property) }.toList()
+                else field.value.map { getValueProperty(it, property) }.toList()
             } else {
                 if (property == null) listOf(Json.encodeToString(field.value[index]))
-                else listOf(getObjectProperty(field.value[index], property))
+                else listOf(getValueProperty(field.value[index], property))
             }
         is Scripts -> if (index >= field.value.size) emptyRes
             else if (index < 0) {
                 if (property == null) field.value.map { Json.encodeToString(it) }.toList()
-                else field.value.map { getObjectProperty(it, property) }.toList()
+                else field.value.map { getValueProperty(it, property) }.toList()
             } else {
                 if (property == null) listOf(Json.encodeToString(field.value[index]))
-                else listOf(getObjectProperty(field.value[index], property))
+                else listOf(getValueProperty(field.value[index], property))
             }
         is SecureNote -> if (index >= field.value.size || property != null) emptyRes
             else if (index < 0) field.value else listOf(field.value[index])
         is SecurityQuestions -> if (index >= field.value.size) emptyRes
             else if (index < 0) {
                 if (property == null) field.value.map { Json.encodeToString(it) }.toList()
-                else field.value.map { getObjectProperty(it, property) }.toList()
+                else field.value.map { getValueProperty(it, property) }.toList()
             } else {
                 if (property == null) listOf(Json.encodeToString(field.value[index]))
-                else listOf(getObjectProperty(field.value[index], property))
+                else listOf(getValueProperty(field.value[index], property))
             }
         is Text -> if (index >= field.value.size || property != null) emptyRes
             else if (index < 0) field.value else listOf(field.value[index])
+        is UnknownField -> field.valueElements().let { values ->
+            if (index >= values.size) emptyRes
+            else (if (index < 0) values else listOf(values[index])).map {
+                if (property == null) jsonValueText(it)
+                else (it as? JsonObject)?.get(property)?.let { value -> jsonValueText(value) } ?: "null"
+            }
+        }
         is TrafficEncryptionKey -> if (index >= field.value.size || property != null) emptyRes
             else if (index < 0) field.value else listOf(field.value[index])
         is TrafficEncryptionSeed -> if (index >= field.value.size || property != null) emptyRes
@@ -425,6 +549,7 @@ private fun getFieldStringValue(field: KeeperRecordField, valueIdx: Int): String
         is SecureNote -> field.value[valueIdx]
         is SecurityQuestions -> Json.encodeToString(field.value[valueIdx])
         is Text -> field.value[valueIdx]
+        is UnknownField -> jsonValueText(field.valueElements()[valueIdx])
         is TrafficEncryptionKey -> field.value[valueIdx]
         is TrafficEncryptionSeed -> field.value[valueIdx]
         is Url -> field.value[valueIdx]
@@ -434,28 +559,25 @@ private fun getFieldStringValue(field: KeeperRecordField, valueIdx: Int): String
 
 private fun getFieldValueProperty(field: KeeperRecordField, valueIdx: Int, propertyName: String): String {
     return when (field) {
-        is AppFillers -> getObjectProperty(field.value[valueIdx], propertyName)
-        is Addresses -> getObjectProperty(field.value[valueIdx], propertyName)
-        is BankAccounts -> getObjectProperty(field.value[valueIdx], propertyName)
-        is Hosts -> getObjectProperty(field.value[valueIdx], propertyName)
-        is Names -> getObjectProperty(field.value[valueIdx], propertyName)
-        is PamHostnames -> getObjectProperty(field.value[valueIdx], propertyName)
-        is PamRemoteBrowserSettings -> getObjectProperty(field.value[valueIdx], propertyName)
-        is PamResources -> getObjectProperty(field.value[valueIdx], propertyName)
-        is PamSettings -> getObjectProperty(field.value[valueIdx], propertyName)
-        is Passkeys -> getObjectProperty(field.value[valueIdx], propertyName)
-        is PaymentCards -> getObjectProperty(field.value[valueIdx], propertyName)
-        is Phones -> getObjectProperty(field.value[valueIdx], propertyName)
-        is Schedules -> getObjectProperty(field.value[valueIdx], propertyName)
-        is Scripts -> getObjectProperty(field.value[valueIdx], propertyName)
-        is SecurityQuestions -> getObjectProperty(field.value[valueIdx], propertyName)
+        is AppFillers -> getValueProperty(field.value[valueIdx], propertyName)
+        is Addresses -> getValueProperty(field.value[valueIdx], propertyName)
+        is BankAccounts -> getValueProperty(field.value[valueIdx], propertyName)
+        is Hosts -> getValueProperty(field.value[valueIdx], propertyName)
+        is Names -> getValueProperty(field.value[valueIdx], propertyName)
+        is PamHostnames -> getValueProperty(field.value[valueIdx], propertyName)
+        is PamRemoteBrowserSettings -> getValueProperty(field.value[valueIdx], propertyName)
+        is PamResources -> getValueProperty(field.value[valueIdx], propertyName)
+        is PamSettings -> getValueProperty(field.value[valueIdx], propertyName)
+        is Passkeys -> getValueProperty(field.value[valueIdx], propertyName)
+        is PaymentCards -> getValueProperty(field.value[valueIdx], propertyName)
+        is Phones -> getValueProperty(field.value[valueIdx], propertyName)
+        is Schedules -> getValueProperty(field.value[valueIdx], propertyName)
+        is Scripts -> getValueProperty(field.value[valueIdx], propertyName)
+        is SecurityQuestions -> getValueProperty(field.value[valueIdx], propertyName)
         else -> throw Exception("Property name notation is not supported for ${fieldType(field)}")
     }
 }
 
-private fun getObjectProperty(obj: Any, propertyName: String): String {
-    return obj.javaClass.kotlin.memberProperties.first { it.name == propertyName }.get(obj).toString()
-}
 
 @ExperimentalSerializationApi
 private fun getFieldJsonValue(field: KeeperRecordField): String {
@@ -503,6 +625,7 @@ private fun getFieldJsonValue(field: KeeperRecordField): String {
         is SecureNote -> Json.encodeToString(field.value)
         is SecurityQuestions -> Json.encodeToString(field.value)
         is Text -> Json.encodeToString(field.value)
+        is UnknownField -> JsonArray(field.valueElements()).toString()
         is TrafficEncryptionKey -> Json.encodeToString(field.value)
         is TrafficEncryptionSeed -> Json.encodeToString(field.value)
         is Url -> Json.encodeToString(field.value)
@@ -0,0 +1,73 @@
+package com.keepersecurity.secretsManager.core
+
+import kotlinx.serialization.ExperimentalSerializationApi
+
+/**
+ * Resolves many notations with as few get_secret calls as possible, see [getNotationResults] for the notation format.
+ *
+ * Notations are parsed once and cached. The records referenced by UID are fetched in a single filtered call,
+ * and the notations referencing records by title (or by a UID that was not found) share one fetch of all records.
+ * Resolving a batch therefore takes at most two calls, regardless of the number of notations.
+ */
+@ExperimentalSerializationApi
+class NotationResolver(private val options: SecretsManagerOptions) {
+
+    /**
+     * Returns the values of every notation, throws on the first notation that can not be resolved
+     */
+    fun resolve(notations: Collection<String>): Map<String, List<String>> {
+        return resolveAll(notations) { _, e -> throw e }
+    }
+
+    /**
+     * Returns the values of every notation, notations that can not be resolved are logged and map to an empty list
+     */
+    fun tryResolve(notations: Collection<String>): Map<String, List<String>> {
+        return resolveAll(notations) { notation, e ->
+            println("Notation '$notation' could not be resolved: ${e.message}")
+            emptyList()
+        }
+    }
+
+    private fun resolveAll(
+        notations: Collection<String>,
+        onError: (String, Exception) -> List<String>
+    ): Map<String, List<String>> {
+        val compiled = LinkedHashMap<String, CompiledNotation>()
+        val results = LinkedHashMap<String, List<String>>()
+        for (notation in notations) {
+            if (compiled.containsKey(notation) || results.containsKey(notation)) {
+                continue
+            }
+            try {
+                compiled[notation] = compileNotation(notation)
+            } catch (e: Exception) {
+                results[notation] = onError(notation, e)
+            }
+        }
+
+        // records referenced by UID - one filtered request
+        val uids = compiled.values.filter { it.isRecordUid }.map { it.recordToken }.distinct()
+        val recordsByUid = runCatching {
+            if (uids.isEmpty()) emptyMap() else getSecrets(options, uids).records.groupBy { it.recordUid }
+        }
+
+        // records referenced by title - one request for all records, made only when needed and not repeated on failure
+        val allSecrets by lazy { runCatching { getSecrets(options) } }
+
+        for ((notation, compiledNotation) in compiled) {
+            results[notation] = try {
+                var records = recordsByUid.getOrThrow()[compiledNotation.recordToken].orEmpty()
+                if (records.size > 1)
+                    throw Exception("Notation error - found multiple records with same UID '${compiledNotation.recordToken}'")
+                if (records.isEmpty()) {
+                    records = allSecrets.getOrThrow().getSecretsByTitle(compiledNotation.recordToken)
+                }
+                getNotationValues(compiledNotation, records)
+            } catch (e: Exception) {
+                onError(notation, e)
+            }
+        }
+        return notations.distinct().associateWith { results.getValue(it) }
+    }
+}
@@ -0,0 +1,183 @@
+package com.keepersecurity.secretsManager.core
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Client side rate limiting of the Secrets Manager requests, set [SecretsManagerOptions.rateLimit] to enable.
+ *
+ * All requests of the same application (client id) share one limiter in the process. When it is used with other options
+ * it keeps the strictest of them - the lowest rates and burst, the longest backoff and the most retries.
+ * Every endpoint (get_secret, update_secret, ...) has its own token bucket.
+ * When the server answers with the `throttled` error all endpoints of the client back off
+ * and the request is retried after a jittered exponential delay.
+ *
+ * @param requestsPerSecond Sustained request rate per endpoint
+ * @param burst Number of requests per endpoint that can be sent at once after a quiet period
+ * @param endpointRequestsPerSecond Request rate overrides for individual endpoints, ex. "get_secret"
+ * @param maxRetries How many times a throttled request is retried before the error is thrown
+ * @param initialBackoffMillis Delay before the first retry of a throttled request
+ * @param maxBackoffMillis Upper bound of the retry delay
+ */
+data class RateLimitOptions @JvmOverloads constructor(
+    val requestsPerSecond: Double = 5.0,
+    val burst: Int = 10,
+    val endpointRequestsPerSecond: Map<String, Double> = emptyMap(),
+    val maxRetries: Int = 5,
+    val initialBackoffMillis: Long = 1_000,
+    val maxBackoffMillis: Long = 30_000
+) {
+    init {
+        require(requestsPerSecond > 0) { "Request rate must be positive" }
+        require(burst > 0) { "Burst must be positive" }
+        require(endpointRequestsPerSecond.values.all { it > 0 }) { "Endpoint request rates must be positive" }
+        require(maxRetries >= 0) { "Number of retries can not be negative" }
+        require(initialBackoffMillis in 1..maxBackoffMillis) { "Initial backoff must be positive and not exceed the maximum backoff" }
+    }
+
+    internal fun rateOf(endpoint: String): Double {
+        return endpointRequestsPerSecond[endpoint] ?: requestsPerSecond
+    }
+
+    // the strictest of both options
+    internal fun tightenedBy(other: RateLimitOptions): RateLimitOptions {
+        val endpoints = endpointRequestsPerSecond.keys + other.endpointRequestsPerSecond.keys
+        return RateLimitOptions(
+            minOf(requestsPerSecond, other.requestsPerSecond),
+            minOf(burst, other.burst),
+            endpoints.associateWith { minOf(rateOf(it), other.rateOf(it)) },
+            maxOf(maxRetries, other.maxRetries),
+            maxOf(initialBackoffMillis, other.initialBackoffMillis),
+            maxOf(maxBackoffMillis, other.maxBackoffMillis)
+        )
+    }
+}
+
+internal const val HTTP_TOO_MANY_REQUESTS = 429
+
+private val rateLimiters = ConcurrentHashMap<String, ClientRateLimiter>()
+
+internal fun rateLimiterFor(clientId: String, options: RateLimitOptions): ClientRateLimiter {
+    val limiter = rateLimiters.computeIfAbsent(clientId) { ClientRateLimiter(options) }
+    limiter.tighten(options)
+    return limiter
+}
+
+// `limitRate` false - only backs off and retries throttled requests, used by the batch calls without options.rateLimit
+internal class ClientRateLimiter(options: RateLimitOptions, private val limitRate: Boolean = true) {
+
+    @Volatile
+    internal var options: RateLimitOptions = options
+        private set
+    // options already merged into `options`, the common case of the same options is a set lookup
+    private val applied = ConcurrentHashMap.newKeySet<RateLimitOptions>().apply { add(options) }
+    private val buckets = ConcurrentHashMap<String, TokenBucket>()
+    // set after a throttled response, no request of this client is sent before this time
+    private val blockedUntil = AtomicLong(System.nanoTime())
+
+    fun tighten(other: RateLimitOptions) {
+        if (!applied.add(other)) {
+            return
+        }
+        synchronized(this) {
+            val merged = options.tightenedBy(other)
+            options = merged
+            buckets.forEach { (endpoint, bucket) -> bucket.limitTo(merged.rateOf(endpoint), merged.burst) }
+        }
+    }
+
+    fun acquire(endpoint: String) {
+        waitUntil(blockedUntil.get())
+        if (!limitRate) {
+            return
+        }
+        val current = options
+        val bucket = buckets.computeIfAbsent(endpoint) { TokenBucket(current.rateOf(endpoint), current.burst) }
+        // a bucket created while the options were tightened
+        if (current !== options) {
+            bucket.limitTo(options.rateOf(endpoint), options.burst)
+        }
+        bucket.acquire()
+    }
+
+    fun onSuccess(endpoint: String) {
+        buckets[endpoint]?.recover()
+    }
+
+    /**
+     * Returns false when the request should not be retried anymore
+     */
+    fun onThrottled(endpoint: String, attempt: Int): Boolean {
+        val options = options
+        buckets[endpoint]?.slowDown()
+        if (attempt >= options.maxRetries) {
+            return false
+        }
+        // equal jitter - half of the exponential delay plus a random part up to the other half,
+        // spreads the retries of the clients that were throttled at the same time
+        val ceiling = minOf(options.maxBackoffMillis, options.initialBackoffMillis shl minOf(attempt, 20))
+        val delay = TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1))
+        val until = System.nanoTime() + delay
+        blockedUntil.accumulateAndGet(until) { current, next -> if (next - current > 0) next else current }
+        waitUntil(blockedUntil.get())
+        return true
+    }
+}
+
+// Lock free token bucket (GCRA) - a single CAS on the theoretical arrival time of the next request reserves
+// a token, the caller then sleeps until its reserved slot. The interval between requests doubles after
+// every throttled response and decays back to the configured rate as requests succeed.
+// The configured rate and burst can only be lowered.
+internal class TokenBucket(requestsPerSecond: Double, burst: Int) {
+
+    private val baseInterval = AtomicLong(intervalOf(requestsPerSecond))
+    @Volatile
+    private var burst = burst.toLong()
+    private val interval = AtomicLong(baseInterval.get())
+    private val theoreticalArrival = AtomicLong(System.nanoTime())
+
+    fun limitTo(requestsPerSecond: Double, burst: Int) {
+        val limit = baseInterval.accumulateAndGet(intervalOf(requestsPerSecond)) { current, next -> maxOf(current, next) }
+        interval.accumulateAndGet(limit) { current, next -> maxOf(current, next) }
+        this.burst = minOf(this.burst, burst.toLong())
+    }
+
+    fun acquire() {
+        while (true) {
+            val now = System.nanoTime()
+            val tat = theoreticalArrival.get()
+            val step = interval.get()
+            val start = if (tat - now > 0) tat else now
+            if (theoreticalArrival.compareAndSet(tat, start + step)) {
+                waitUntil(start - (burst - 1) * step)
+                return
+            }
+        }
+    }
+
+    fun slowDown() {
+        val maxInterval = baseInterval.get() * 64
+        interval.updateAndGet { minOf(maxInterval, it * 2) }
+    }
+
+    fun recover() {
+        val base = baseInterval.get()
+        interval.updateAndGet { if (it > base) maxOf(base, it - it / 8) else it }
+    }
+
+    private fun intervalOf(requestsPerSecond: Double): Long {
+        return maxOf(1L, (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond).toLong())
+    }
+}
+
+private fun waitUntil(deadline: Long) {
+    while (true) {
+        val remaining = deadline - System.nanoTime()
+        if (remaining <= 0) {
+            return
+        }
+        TimeUnit.NANOSECONDS.sleep(remaining)
+    }
+}
@@ -3,29 +3,123 @@
 
 package com.keepersecurity.secretsManager.core
 
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.KeepGeneratedSerializer
 import kotlinx.serialization.SerialName
 import kotlinx.serialization.Serializable
+import kotlinx.serialization.Transient
+import kotlinx.serialization.json.JsonObject
+import java.lang.reflect.Modifier
 
-@Serializable
+@OptIn(ExperimentalSerializationApi::class)
+@KeepGeneratedSerializer
+@Serializable(with = KeeperRecordDataSerializer::class)
 data class KeeperRecordData @JvmOverloads constructor(
     var title: String,
     val type: String,
     val fields: MutableList<KeeperRecordField>,
     var custom: MutableList<KeeperRecordField>? = null,
-    var notes: String? = null
+    var notes: String? = null,
+    // record properties of the JSON not known to this SDK version, written back on save
+    @Transient internal var unknownProperties: JsonObject? = null
 ) {
+    // first field of every type and label, by position in fields followed by custom.
+    // Used only while both lists still hold the same field objects with the same labels as when it was built:
+    // every lookup compares them by identity, so no change to the lists or to a label goes unnoticed
+    private class FieldIndex(
+        val custom: List<KeeperRecordField>?,
+        val all: Array<KeeperRecordField>,
+        val labels: Array<String?>,
+        val byType: Map<Class<*>, Int>,
+        val byLabel: Map<String, Int>
+    ) {
+        fun matches(fields: List<KeeperRecordField>, custom: List<KeeperRecordField>?): Boolean {
+            if (custom !== this.custom || fields.size + (custom?.size ?: 0) != all.size) {
+                return false
+            }
+            for (position in all.indices) {
+                val field = if (position < fields.size) fields[position] else custom!![position - fields.size]
+                if (field !== all[position] || field.label != labels[position]) {
+                    return false
+                }
+            }
+            return true
+        }
+    }
+
+    @Transient
+    private var fieldIndex: FieldIndex? = null
+
     inline fun <reified T> getField(): T? {
-        return (fields + custom).find { x -> x is T } as T
+        return findField(T::class.java, false) as T?
     }
 
     fun getField(clazz: Class<out KeeperRecordField>): KeeperRecordField? {
-        return (fields + (custom ?: listOf())).find { x -> x.javaClass == clazz }
+        return findField(clazz, true)
+    }
+
+    /**
+     * Returns the first standard or custom field with the label
+     */
+    fun getFieldByLabel(label: String): KeeperRecordField? {
+        val index = currentFieldIndex()
+        return index.byLabel[label]?.let { index.all[it] }
+    }
+
+    @PublishedApi
+    internal fun findField(clazz: Class<*>, exact: Boolean): KeeperRecordField? {
+        val index = currentFieldIndex()
+        index.byType[clazz]?.let { return index.all[it] }
+        // field types are final classes, only a lookup by a base class has to check every field
+        if (exact || Modifier.isFinal(clazz.modifiers)) {
+            return null
+        }
+        fields.firstOrNull { clazz.isInstance(it) }?.let { return it }
+        return custom?.firstOrNull { clazz.isInstance(it) }
+    }
+
+    private fun currentFieldIndex(): FieldIndex {
+        val index = fieldIndex
+        if (index != null && index.matches(fields, custom)) {
+            return index
+        }
+        val byType = HashMap<Class<*>, Int>()
+        val byLabel = HashMap<String, Int>()
+        val all = (if (custom == null) fields else fields + custom!!).toTypedArray()
+        val labels = arrayOfNulls<String>(all.size)
+        all.forEachIndexed { position, field ->
+            byType.putIfAbsent(field.javaClass, position)
+            labels[position] = field.label
+            field.label?.let { byLabel.putIfAbsent(it, position) }
+        }
+        val rebuilt = FieldIndex(custom, all, labels, byType, byLabel)
+        fieldIndex = rebuilt
+        return rebuilt
     }
 }
 
-@Serializable
+@Serializable(with = KeeperRecordFieldSerializer::class)
 sealed class KeeperRecordField {
     abstract val label: String?
+
+    // properties of the field JSON not known to this SDK version, written back on save.
+    // A constructor property of every field type, so copy() keeps them
+    internal abstract var unknownProperties: JsonObject?
+}
+
+/**
+ * Field of a type not known to this SDK version, kept as the raw JSON of the field so it is written back unchanged on save
+ */
+@Serializable(with = UnknownFieldSerializer::class)
+data class UnknownField(
+    val type: String,
+    override val label: String?,
+    val json: String
+) : KeeperRecordField() {
+    // the raw JSON already holds every property
+    override var unknownProperties: JsonObject?
+        get() = null
+        set(_) {}
 }
 
 @Serializable
@@ -43,7 +137,8 @@ data class Login @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<String>
+    val value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
 ) : KeeperRecordField(){
     constructor(value: String): this(null, null, null, mutableListOf(value))
 }
@@ -65,7 +160,8 @@ data class Password @JvmOverloads constructor(
     var privacyScreen: Boolean? = null,
     var enforceGeneration: Boolean? = null,
     var complexity: PasswordComplexity? = null,
-    val value: MutableList<String>
+    val value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
 ) : KeeperRecordField(){
     constructor(value: String): this(null, null, null, null, null, mutableListOf(value))
 }
@@ -76,7 +172,9 @@ data class Url @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<String>) : KeeperRecordField(){
+    val value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, null, mutableListOf(value))
 }
 
@@ -86,7 +184,9 @@ data class Url @JvmOverloads constructor(
 data class FileRef @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
-    val value: MutableList<String>) : KeeperRecordField(){
+    val value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, mutableListOf(value))
 }
 
@@ -96,7 +196,9 @@ data class OneTimeCode @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<String>) : KeeperRecordField(){
+    val value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, null, mutableListOf(value))
 }
 
@@ -106,7 +208,9 @@ data class OneTimePassword @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<String>) : KeeperRecordField(){
+    val value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, null, mutableListOf(value))
 }
 
@@ -119,7 +223,9 @@ data class Names @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<Name>) : KeeperRecordField(){
+    val value: MutableList<Name>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: Name): this(null, null, null, mutableListOf(value))
 }
 
@@ -129,7 +235,9 @@ data class BirthDate @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<Long>) : KeeperRecordField(){
+    val value: MutableList<Long>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: Long): this(null, null, null, mutableListOf(value))
 }
 
@@ -139,7 +247,9 @@ data class Date @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<Long>) : KeeperRecordField(){
+    val value: MutableList<Long>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: Long): this(null, null, null, mutableListOf(value))
 }
 
@@ -149,7 +259,9 @@ data class ExpirationDate @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<Long>) : KeeperRecordField(){
+    val value: MutableList<Long>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: Long): this(null, null, null, mutableListOf(value))
 }
 
@@ -159,7 +271,9 @@ data class Text @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    var value: MutableList<String>) : KeeperRecordField(){
+    var value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, null, mutableListOf(value))
 }
 
@@ -172,7 +286,8 @@ data class SecurityQuestions @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<SecurityQuestion>
+    val value: MutableList<SecurityQuestion>,
+    @Transient override var unknownProperties: JsonObject? = null
 ) : KeeperRecordField(){
     constructor(value: SecurityQuestion): this(null, null, null, mutableListOf(value))
 }
@@ -183,7 +298,9 @@ data class Multiline @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<String>) : KeeperRecordField(){
+    val value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, null, mutableListOf(value))
 }
 
@@ -193,7 +310,9 @@ data class Email @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<String>) : KeeperRecordField(){
+    val value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, null, mutableListOf(value))
 }
 
@@ -203,7 +322,9 @@ data class CardRef @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<String>) : KeeperRecordField(){
+    val value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, null, mutableListOf(value))
 }
 
@@ -213,7 +334,9 @@ data class AddressRef @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<String>) : KeeperRecordField(){
+    val value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, null, mutableListOf(value))
 }
 
@@ -223,7 +346,9 @@ data class PinCode @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<String>) : KeeperRecordField(){
+    val value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, null, mutableListOf(value))
 }
 
@@ -257,7 +382,9 @@ data class Phones @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: List<Phone>) : KeeperRecordField(){
+    val value: List<Phone>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: Phone): this(null, null, null, mutableListOf(value))
 }
 
@@ -267,7 +394,9 @@ data class HiddenField @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: List<String>) : KeeperRecordField(){
+    val value: List<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, null, mutableListOf(value))
 }
 
@@ -277,7 +406,9 @@ data class SecureNote @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: List<String>) : KeeperRecordField(){
+    val value: List<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, null, mutableListOf(value))
 }
 
@@ -287,7 +418,9 @@ data class AccountNumber @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: List<String>) : KeeperRecordField(){
+    val value: List<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, null, mutableListOf(value))
 }
 
@@ -304,7 +437,9 @@ data class PaymentCards @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<PaymentCard>) : KeeperRecordField(){
+    val value: MutableList<PaymentCard>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: PaymentCard): this(null, null, null, mutableListOf(value))
 }
 
@@ -322,7 +457,9 @@ data class BankAccounts @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<BankAccount>) : KeeperRecordField() {
+    val value: MutableList<BankAccount>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField() {
     constructor(value: BankAccount): this(null, null, null, mutableListOf(value))
 }
 
@@ -338,7 +475,9 @@ data class KeyPairs @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<KeyPair>) : KeeperRecordField() {
+    val value: MutableList<KeyPair>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField() {
     constructor(value: KeyPair): this(null, null, null, mutableListOf(value))
 }
 
@@ -354,7 +493,9 @@ data class Hosts @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<Host>) : KeeperRecordField() {
+    val value: MutableList<Host>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField() {
     constructor(value: Host): this(null, null, null, mutableListOf(value))
 }
 
@@ -374,7 +515,9 @@ data class Addresses @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<Address>) : KeeperRecordField() {
+    val value: MutableList<Address>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField() {
     constructor(value: Address): this(null, null, null, mutableListOf(value))
 }
 
@@ -384,7 +527,9 @@ data class LicenseNumber @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<String>) : KeeperRecordField() {
+    val value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField() {
     constructor(value: String): this(null, null, null, mutableListOf(value))
 }
 
@@ -410,7 +555,9 @@ data class PamResource @JvmOverloads constructor(
 data class PamResources @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
-    val value: MutableList<PamResource>) : KeeperRecordField() {
+    val value: MutableList<PamResource>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField() {
     constructor(value: PamResource): this(null, null, mutableListOf(value))
 }
 
@@ -430,7 +577,9 @@ data class Schedule @JvmOverloads constructor(
 data class Schedules @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
-    val value: MutableList<Schedule>) : KeeperRecordField() {
+    val value: MutableList<Schedule>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField() {
     constructor(value: Schedule): this(null, null, mutableListOf(value))
 }
 
@@ -439,7 +588,9 @@ data class Schedules @JvmOverloads constructor(
 data class Checkbox @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
-    val value: MutableList<Boolean>) : KeeperRecordField(){
+    val value: MutableList<Boolean>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: Boolean): this(null, null, mutableListOf(value))
 }
 
@@ -448,7 +599,9 @@ data class Checkbox @JvmOverloads constructor(
 data class DatabaseType @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
-    var value: MutableList<String>) : KeeperRecordField(){
+    var value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, mutableListOf(value))
 }
 
@@ -457,7 +610,9 @@ data class DatabaseType @JvmOverloads constructor(
 data class DirectoryType @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
-    var value: MutableList<String>) : KeeperRecordField(){
+    var value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, mutableListOf(value))
 }
 
@@ -466,7 +621,9 @@ data class DirectoryType @JvmOverloads constructor(
 data class RecordRef @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
-    val value: MutableList<String>) : KeeperRecordField(){
+    val value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, mutableListOf(value))
 }
 
@@ -476,7 +633,9 @@ data class PamHostnames @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<Host>) : KeeperRecordField() {
+    val value: MutableList<Host>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField() {
     constructor(value: Host): this(null, null, null, mutableListOf(value))
 }
 
@@ -509,7 +668,9 @@ data class Passkeys @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<Passkey>) : KeeperRecordField() {
+    val value: MutableList<Passkey>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField() {
     constructor(value: Passkey): this(null, null, null, mutableListOf(value))
 }
 
@@ -526,7 +687,9 @@ data class Scripts @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<Script>) : KeeperRecordField() {
+    val value: MutableList<Script>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField() {
     constructor(value: Script): this(null, null, null, mutableListOf(value))
 }
 
@@ -535,7 +698,9 @@ data class Scripts @JvmOverloads constructor(
 data class IsSsidHidden @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
-    val value: MutableList<Boolean>) : KeeperRecordField(){
+    val value: MutableList<Boolean>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: Boolean): this(null, null, mutableListOf(value))
 }
 
@@ -544,7 +709,9 @@ data class IsSsidHidden @JvmOverloads constructor(
 data class WifiEncryption @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
-    var value: MutableList<String>) : KeeperRecordField(){
+    var value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, mutableListOf(value))
 }
 
@@ -553,7 +720,9 @@ data class WifiEncryption @JvmOverloads constructor(
 data class Dropdown @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
-    var value: MutableList<String>) : KeeperRecordField(){
+    var value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, mutableListOf(value))
 }
 
@@ -562,7 +731,9 @@ data class Dropdown @JvmOverloads constructor(
 data class RbiUrl @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
-    var value: MutableList<String>) : KeeperRecordField(){
+    var value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, mutableListOf(value))
 }
 
@@ -579,7 +750,9 @@ data class AppFillers @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
     var privacyScreen: Boolean? = null,
-    val value: MutableList<AppFiller>) : KeeperRecordField() {
+    val value: MutableList<AppFiller>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField() {
     constructor(value: AppFiller): this(null, null, null, mutableListOf(value))
 }
 
@@ -605,7 +778,9 @@ data class PamRemoteBrowserSetting @JvmOverloads constructor(
 data class PamRemoteBrowserSettings @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
-    val value: MutableList<PamRemoteBrowserSetting>) : KeeperRecordField() {
+    val value: MutableList<PamRemoteBrowserSetting>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField() {
     constructor(value: PamRemoteBrowserSetting): this(null, null, mutableListOf(value))
 }
 
@@ -695,7 +870,9 @@ data class PamSetting @JvmOverloads constructor(
 data class PamSettings @JvmOverloads constructor(
     override val label: String? = null,
     var required: Boolean? = null,
-    val value: MutableList<PamSetting>) : KeeperRecordField() {
+    val value: MutableList<PamSetting>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField() {
     constructor(value: PamSetting): this(null, null, mutableListOf(value))
 }
 
@@ -704,7 +881,9 @@ data class PamSettings @JvmOverloads constructor(
 data class TrafficEncryptionSeed @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
-    var value: MutableList<String>) : KeeperRecordField(){
+    var value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, mutableListOf(value))
 }
 
@@ -715,7 +894,9 @@ data class TrafficEncryptionSeed @JvmOverloads constructor(
 internal data class TrafficEncryptionKey @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
-    var value: MutableList<String>) : KeeperRecordField(){
+    var value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, mutableListOf(value))
 }
 
@@ -725,7 +906,9 @@ internal data class TrafficEncryptionKey @JvmOverloads constructor(
 internal data class PamProvider @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
-    var value: MutableList<String>) : KeeperRecordField(){
+    var value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, mutableListOf(value))
 }
 
@@ -735,6 +918,8 @@ internal data class PamProvider @JvmOverloads constructor(
 internal data class Controller @JvmOverloads constructor(
     override var label: String? = null,
     var required: Boolean? = null,
-    var value: MutableList<String>) : KeeperRecordField(){
+    var value: MutableList<String>,
+    @Transient override var unknownProperties: JsonObject? = null
+) : KeeperRecordField(){
     constructor(value: String): this(null, null, mutableListOf(value))
 }
@@ -0,0 +1,154 @@
+package com.keepersecurity.secretsManager.core
+
+// Field type names and value property getters used by notations, resolved without reflection.
+// fieldType mirrors the @SerialName of every KeeperRecordField subclass - the `when` is exhaustive
+// over the sealed class, so a new field type does not compile until it is listed here.
+
+internal fun fieldType(field: KeeperRecordField): String {
+    return when (field) {
+        is Login -> "login"
+        is Password -> "password"
+        is Url -> "url"
+        is FileRef -> "fileRef"
+        is OneTimeCode -> "oneTimeCode"
+        is OneTimePassword -> "otp"
+        is Names -> "name"
+        is BirthDate -> "birthDate"
+        is Date -> "date"
+        is ExpirationDate -> "expirationDate"
+        is Text -> "text"
+        is SecurityQuestions -> "securityQuestion"
+        is Multiline -> "multiline"
+        is Email -> "email"
+        is CardRef -> "cardRef"
+        is AddressRef -> "addressRef"
+        is PinCode -> "pinCode"
+        is Phones -> "phone"
+        is HiddenField -> "secret"
+        is SecureNote -> "note"
+        is AccountNumber -> "accountNumber"
+        is PaymentCards -> "paymentCard"
+        is BankAccounts -> "bankAccount"
+        is KeyPairs -> "keyPair"
+        is Hosts -> "host"
+        is Addresses -> "address"
+        is LicenseNumber -> "licenseNumber"
+        is PamResources -> "pamResources"
+        is Schedules -> "schedule"
+        is Checkbox -> "checkbox"
+        is DatabaseType -> "databaseType"
+        is DirectoryType -> "directoryType"
+        is RecordRef -> "recordRef"
+        is PamHostnames -> "pamHostname"
+        is Passkeys -> "passkey"
+        is Scripts -> "script"
+        is IsSsidHidden -> "isSSIDHidden"
+        is WifiEncryption -> "wifiEncryption"
+        is Dropdown -> "dropdown"
+        is RbiUrl -> "rbiUrl"
+        is AppFillers -> "appFiller"
+        is PamRemoteBrowserSettings -> "pamRemoteBrowserSettings"
+        is PamSettings -> "pamSettings"
+        is TrafficEncryptionSeed -> "trafficEncryptionSeed"
+        is TrafficEncryptionKey -> "trafficEncryptionKey"
+        is PamProvider -> "pamProvider"
+        is Controller -> "controller"
+        is UnknownField -> field.type
+    }
+}
+
+// getters of the properties of the field value objects, by Kotlin property name
+private val valuePropertyGetters: Map<Class<*>, Map<String, (Any) -> Any?>> = mapOf(
+    getters<AppFiller>(
+        "applicationTitle" to { it.applicationTitle },
+        "contentFilter" to { it.contentFilter },
+        "macroSequence" to { it.macroSequence }
+    ),
+    getters<Address>(
+        "street1" to { it.street1 },
+        "street2" to { it.street2 },
+        "city" to { it.city },
+        "state" to { it.state },
+        "country" to { it.country },
+        "zip" to { it.zip }
+    ),
+    getters<BankAccount>(
+        "accountType" to { it.accountType },
+        "routingNumber" to { it.routingNumber },
+        "accountNumber" to { it.accountNumber },
+        "otherType" to { it.otherType }
+    ),
+    getters<Host>(
+        "hostName" to { it.hostName },
+        "port" to { it.port }
+    ),
+    getters<Name>(
+        "first" to { it.first },
+        "middle" to { it.middle },
+        "last" to { it.last }
+    ),
+    getters<PamRemoteBrowserSetting>(
+        "connection" to { it.connection }
+    ),
+    getters<PamResource>(
+        "controllerUid" to { it.controllerUid },
+        "folderUid" to { it.folderUid },
+        "resourceRef" to { it.resourceRef },
+        "allowedSettings" to { it.allowedSettings }
+    ),
+    getters<PamSetting>(
+        "connection" to { it.connection },
+        "portForward" to { it.portForward }
+    ),
+    getters<Passkey>(
+        "privateKey" to { it.privateKey },
+        "credentialId" to { it.credentialId },
+        "signCount" to { it.signCount },
+        "userId" to { it.userId },
+        "relyingParty" to { it.relyingParty },
+        "username" to { it.username },
+        "createdDate" to { it.createdDate }
+    ),
+    getters<PaymentCard>(
+        "cardNumber" to { it.cardNumber },
+        "cardExpirationDate" to { it.cardExpirationDate },
+        "cardSecurityCode" to { it.cardSecurityCode }
+    ),
+    getters<Phone>(
+        "region" to { it.region },
+        "number" to { it.number },
+        "ext" to { it.ext },
+        "type" to { it.type }
+    ),
+    getters<Schedule>(
+        "type" to { it.type },
+        "cron" to { it.cron },
+        "time" to { it.time },
+        "tz" to { it.tz },
+        "weekday" to { it.weekday },
+        "intervalCount" to { it.intervalCount }
+    ),
+    getters<Script>(
+        "fileRef" to { it.fileRef },
+        "command" to { it.command },
+        "recordRef" to { it.recordRef }
+    ),
+    getters<SecurityQuestion>(
+        "question" to { it.question },
+        "answer" to { it.answer }
+    )
+)
+
+@Suppress("UNCHECKED_CAST")
+private inline fun <reified T : Any> getters(vararg getters: Pair<String, (T) -> Any?>): Pair<Class<*>, Map<String, (Any) -> Any?>> {
+    return T::class.java to getters.associate { (name, getter) -> name to { value: Any -> getter(value as T) } }
+}
+
+// value of the property as text, null values are returned as "null"
+internal fun getValueProperty(value: Any, propertyName: String): String {
+    val getters = valuePropertyGetters[value.javaClass]
+        ?: throw Exception("Property name notation is not supported for ${value.javaClass.simpleName}")
+    val getter = getters[propertyName]
+        ?: throw Exception("Notation error - ${value.javaClass.simpleName} has no property '$propertyName'")
+    return getter(value).toString()
+}
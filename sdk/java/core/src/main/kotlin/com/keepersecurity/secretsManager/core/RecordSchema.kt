@@ -0,0 +1,297 @@
+package com.keepersecurity.secretsManager.core
+
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.InternalSerializationApi
+import kotlinx.serialization.KSerializer
+import kotlinx.serialization.SealedClassSerializer
+import kotlinx.serialization.SerializationException
+import kotlinx.serialization.builtins.nullable
+import kotlinx.serialization.builtins.serializer
+import kotlinx.serialization.descriptors.SerialDescriptor
+import kotlinx.serialization.descriptors.buildClassSerialDescriptor
+import kotlinx.serialization.descriptors.element
+import kotlinx.serialization.descriptors.elementDescriptors
+import kotlinx.serialization.descriptors.elementNames
+import kotlinx.serialization.encoding.CompositeDecoder
+import kotlinx.serialization.encoding.Decoder
+import kotlinx.serialization.encoding.Encoder
+import kotlinx.serialization.encoding.decodeStructure
+import kotlinx.serialization.encoding.encodeStructure
+import kotlinx.serialization.json.*
+import kotlin.reflect.KClass
+
+/**
+ * Difference between the record JSON and the record schema known to this SDK version.
+ * Usually means the SDK is older than the vault, the record is still returned:
+ * unknown field types are kept as [UnknownField], unknown field and record properties are kept and written back on save.
+ */
+data class KeeperSchemaWarning(
+    val recordUid: String,
+    val recordType: String,
+    val kind: Kind,
+    // field type for UNKNOWN_FIELD_TYPE, "<field type>.<property>" for UNKNOWN_FIELD_PROPERTY, property for UNKNOWN_RECORD_PROPERTY
+    val name: String
+) {
+    enum class Kind {
+        UNKNOWN_FIELD_TYPE,
+        UNKNOWN_FIELD_PROPERTY,
+        UNKNOWN_RECORD_PROPERTY
+    }
+}
+
+/**
+ * Receives the [KeeperSchemaWarning]s of decoded records, see [SecretsManagerOptions.schemaWarningHandler].
+ * Must be thread safe: with parallel or lazy decryption it is called from the decrypting threads, concurrently.
+ */
+fun interface KeeperSchemaWarningHandler {
+    fun onWarning(warning: KeeperSchemaWarning)
+}
+
+private const val FIELD_TYPE_KEY = "type"
+
+// serializer of every field type, a new field type is added here and in fieldType()
+@OptIn(InternalSerializationApi::class)
+private val fieldSerializer: KSerializer<KeeperRecordField> by lazy {
+    val serializers = listOf<Pair<KClass<out KeeperRecordField>, KSerializer<out KeeperRecordField>>>(
+        Login::class to Login.serializer(),
+        Password::class to Password.serializer(),
+        Url::class to Url.serializer(),
+        FileRef::class to FileRef.serializer(),
+        OneTimeCode::class to OneTimeCode.serializer(),
+        OneTimePassword::class to OneTimePassword.serializer(),
+        Names::class to Names.serializer(),
+        BirthDate::class to BirthDate.serializer(),
+        Date::class to Date.serializer(),
+        ExpirationDate::class to ExpirationDate.serializer(),
+        Text::class to Text.serializer(),
+        SecurityQuestions::class to SecurityQuestions.serializer(),
+        Multiline::class to Multiline.serializer(),
+        Email::class to Email.serializer(),
+        CardRef::class to CardRef.serializer(),
+        AddressRef::class to AddressRef.serializer(),
+        PinCode::class to PinCode.serializer(),
+        Phones::class to Phones.serializer(),
+        HiddenField::class to HiddenField.serializer(),
+        SecureNote::class to SecureNote.serializer(),
+        AccountNumber::class to AccountNumber.serializer(),
+        PaymentCards::class to PaymentCards.serializer(),
+        BankAccounts::class to BankAccounts.serializer(),
+        KeyPairs::class to KeyPairs.serializer(),
+        Hosts::class to Hosts.serializer(),
+        Addresses::class to Addresses.serializer(),
+        LicenseNumber::class to LicenseNumber.serializer(),
+        PamResources::class to PamResources.serializer(),
+        Schedules::class to Schedules.serializer(),
+        Checkbox::class to Checkbox.serializer(),
+        DatabaseType::class to DatabaseType.serializer(),
+        DirectoryType::class to DirectoryType.serializer(),
+        RecordRef::class to RecordRef.serializer(),
+        PamHostnames::class to PamHostnames.serializer(),
+        Passkeys::class to Passkeys.serializer(),
+        Scripts::class to Scripts.serializer(),
+        IsSsidHidden::class to IsSsidHidden.serializer(),
+        WifiEncryption::class to WifiEncryption.serializer(),
+        Dropdown::class to Dropdown.serializer(),
+        RbiUrl::class to RbiUrl.serializer(),
+        AppFillers::class to AppFillers.serializer(),
+        PamRemoteBrowserSettings::class to PamRemoteBrowserSettings.serializer(),
+        PamSettings::class to PamSettings.serializer(),
+        TrafficEncryptionSeed::class to TrafficEncryptionSeed.serializer(),
+        TrafficEncryptionKey::class to TrafficEncryptionKey.serializer(),
+        PamProvider::class to PamProvider.serializer(),
+        Controller::class to Controller.serializer(),
+        UnknownField::class to UnknownFieldSerializer
+    )
+    SealedClassSerializer(
+        "com.keepersecurity.secretsManager.core.KeeperRecordField",
+        KeeperRecordField::class,
+        serializers.map { it.first }.toTypedArray(),
+        serializers.map { it.second }.toTypedArray()
+    )
+}
+
+// serial name of every known field type -> names of its JSON properties
+@OptIn(ExperimentalSerializationApi::class)
+private val knownFieldProperties: Map<String, Set<String>> by lazy {
+    fieldSerializer.descriptor.getElementDescriptor(1).elementDescriptors
+        .filter { it.serialName != UnknownFieldSerializer.descriptor.serialName }
+        .associate { it.serialName to (it.elementNames.toSet() + FIELD_TYPE_KEY) }
+}
+
+@OptIn(ExperimentalSerializationApi::class)
+private val knownRecordProperties: Set<String> by lazy { KeeperRecordData.serializer().descriptor.elementNames.toSet() }
+
+// Decodes the record JSON in a single parse, schema differences are reported to the handler (logged when null)
+// and decoding continues. Returns null when the JSON is not a record at all.
+internal fun decodeRecordData(
+    recordUid: String,
+    data: ByteArray,
+    schemaWarningHandler: KeeperSchemaWarningHandler?
+): KeeperRecordData? {
+    val element = try {
+        nonStrictJson.parseToJsonElement(data).jsonObject
+    } catch (e: Exception) {
+        println("Record $recordUid could not be parsed and will be skipped: ${e.message}")
+        return null
+    }
+    val recordType = (element[FIELD_TYPE_KEY] as? JsonPrimitive)?.contentOrNull ?: "unknown"
+    val warnings = mutableListOf<KeeperSchemaWarning>()
+    element.keys.filter { it !in knownRecordProperties }.forEach {
+        warnings.add(KeeperSchemaWarning(recordUid, recordType, KeeperSchemaWarning.Kind.UNKNOWN_RECORD_PROPERTY, it))
+    }
+    val recordData = try {
+        nonStrictJson.decodeFromJsonElement(KeeperRecordData.serializer(), element)
+    } catch (e: Exception) {
+        println("Record $recordUid (type: $recordType) could not be parsed and will be skipped: ${e.message}")
+        return null
+    }
+    for (field in recordData.fields + recordData.custom.orEmpty()) {
+        if (field is UnknownField) {
+            warnings.add(KeeperSchemaWarning(recordUid, recordType, KeeperSchemaWarning.Kind.UNKNOWN_FIELD_TYPE, field.type))
+        }
+        field.unknownProperties?.keys?.forEach {
+            warnings.add(KeeperSchemaWarning(recordUid, recordType, KeeperSchemaWarning.Kind.UNKNOWN_FIELD_PROPERTY, "${fieldType(field)}.$it"))
+        }
+    }
+    if (warnings.isNotEmpty()) {
+        if (schemaWarningHandler != null) {
+            warnings.forEach { schemaWarningHandler.onWarning(it) }
+        } else {
+            println("""
+            Record $recordUid (type: $recordType) does not match the record schema of this SDK version: ${warnings.joinToString { "${it.kind} '${it.name}'" }}
+            This may occur if the Keeper Secrets Manager (KSM) SDK version you're using is not compatible with the record's data schema.
+            Please ensure that you are using the latest version of the KSM SDK. If the issue persists, contact support@keepersecurity.com for assistance.
+            """.trimIndent())
+        }
+    }
+    return recordData
+}
+
+// Record JSON - properties not known to this SDK version are kept aside and written back as they were read,
+// the known ones go through the generated serializer. Non JSON formats use the generated serializer only.
+@OptIn(ExperimentalSerializationApi::class)
+internal object KeeperRecordDataSerializer : KSerializer<KeeperRecordData> {
+
+    private val delegate = KeeperRecordData.generatedSerializer()
+
+    override val descriptor: SerialDescriptor = delegate.descriptor
+
+    override fun deserialize(decoder: Decoder): KeeperRecordData {
+        if (decoder !is JsonDecoder) {
+            return delegate.deserialize(decoder)
+        }
+        val element = decoder.decodeJsonElement().jsonObject
+        if (element.keys.all { it in knownRecordProperties }) {
+            return decoder.json.decodeFromJsonElement(delegate, element)
+        }
+        val recordData = decoder.json.decodeFromJsonElement(delegate, JsonObject(element.filterKeys { it in knownRecordProperties }))
+        recordData.unknownProperties = JsonObject(element.filterKeys { it !in knownRecordProperties })
+        return recordData
+    }
+
+    override fun serialize(encoder: Encoder, value: KeeperRecordData) {
+        if (encoder !is JsonEncoder) {
+            delegate.serialize(encoder, value)
+            return
+        }
+        val element = encoder.json.encodeToJsonElement(delegate, value)
+        val unknownProperties = value.unknownProperties
+        encoder.encodeJsonElement(if (unknownProperties == null) element else JsonObject(element.jsonObject + unknownProperties))
+    }
+}
+
+// Record fields - fields of unknown types become UnknownField and unknown properties of known fields are kept aside,
+// both are written back as they were read. Non JSON formats use the sealed class serializer only.
+internal object KeeperRecordFieldSerializer : KSerializer<KeeperRecordField> {
+
+    private val delegate get() = fieldSerializer
+
+    override val descriptor: SerialDescriptor get() = delegate.descriptor
+
+    override fun deserialize(decoder: Decoder): KeeperRecordField {
+        if (decoder !is JsonDecoder) {
+            return delegate.deserialize(decoder)
+        }
+        val element = decoder.decodeJsonElement().jsonObject
+        val type = (element[FIELD_TYPE_KEY] as? JsonPrimitive)?.contentOrNull
+        val knownProperties = type?.let { knownFieldProperties[it] }
+            ?: return UnknownField(type ?: "", (element["label"] as? JsonPrimitive)?.contentOrNull, element.toString())
+        if (element.keys.all { it in knownProperties }) {
+            return decoder.json.decodeFromJsonElement(delegate, element)
+        }
+        val field = decoder.json.decodeFromJsonElement(delegate, JsonObject(element.filterKeys { it in knownProperties }))
+        field.unknownProperties = JsonObject(element.filterKeys { it !in knownProperties })
+        return field
+    }
+
+    override fun serialize(encoder: Encoder, value: KeeperRecordField) {
+        if (encoder !is JsonEncoder) {
+            delegate.serialize(encoder, value)
+            return
+        }
+        if (value is UnknownField) {
+            UnknownFieldSerializer.serialize(encoder, value)
+            return
+        }
+        val element = encoder.json.encodeToJsonElement(delegate, value)
+        val unknownProperties = value.unknownProperties
+        encoder.encodeJsonElement(if (unknownProperties == null) element else JsonObject(element.jsonObject + unknownProperties))
+    }
+}
+
+// The raw JSON of the field in JSON, its type, label and JSON text in other formats
+internal object UnknownFieldSerializer : KSerializer<UnknownField> {
+
+    override val descriptor: SerialDescriptor = buildClassSerialDescriptor("com.keepersecurity.secretsManager.core.UnknownField") {
+        element<String>("type")
+        element<String?>("label")
+        element<String>("json")
+    }
+
+    override fun deserialize(decoder: Decoder): UnknownField {
+        if (decoder is JsonDecoder) {
+            val element = decoder.decodeJsonElement().jsonObject
+            return UnknownField(
+                (element[FIELD_TYPE_KEY] as? JsonPrimitive)?.contentOrNull ?: "",
+                (element["label"] as? JsonPrimitive)?.contentOrNull,
+                element.toString()
+            )
+        }
+        return decoder.decodeStructure(descriptor) {
+            var type = ""
+            var label: String? = null
+            var json = "{}"
+            while (true) {
+                when (val index = decodeElementIndex(descriptor)) {
+                    0 -> type = decodeStringElement(descriptor, 0)
+                    1 -> label = decodeNullableSerializableElement(descriptor, 1, String.serializer().nullable)
+                    2 -> json = decodeStringElement(descriptor, 2)
+                    CompositeDecoder.DECODE_DONE -> break
+                    else -> throw SerializationException("Unexpected index $index")
+                }
+            }
+            UnknownField(type, label, json)
+        }
+    }
+
+    override fun serialize(encoder: Encoder, value: UnknownField) {
+        if (encoder is JsonEncoder) {
+            encoder.encodeJsonElement(encoder.json.parseToJsonElement(value.json))
+            return
+        }
+        encoder.encodeStructure(descriptor) {
+            encodeStringElement(descriptor, 0, value.type)
+            encodeNullableSerializableElement(descriptor, 1, String.serializer().nullable, value.label)
+            encodeStringElement(descriptor, 2, value.json)
+        }
+    }
+}
+
+// values of an unknown field, used by notations
+internal fun UnknownField.valueElements(): List<JsonElement> {
+    return (Json.parseToJsonElement(json).jsonObject["value"] as? JsonArray).orEmpty()
+}
+
+internal fun jsonValueText(element: JsonElement): String {
+    return if (element is JsonPrimitive && element.isString) element.content else element.toString()
+}
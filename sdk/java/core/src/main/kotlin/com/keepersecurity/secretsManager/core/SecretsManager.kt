@@ -5,10 +5,19 @@ package com.keepersecurity.secretsManager.core
 import kotlinx.serialization.*
 import kotlinx.serialization.json.Json
 import kotlinx.serialization.json.JsonObject
-import kotlinx.serialization.json.jsonObject
 import kotlinx.serialization.json.jsonPrimitive
 import java.net.HttpURLConnection.HTTP_OK
-import java.net.URI
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.channels.Channels
+import java.nio.channels.WritableByteChannel
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
 import java.security.KeyManagementException
 import java.security.NoSuchAlgorithmException
 import java.security.SecureRandom
@@ -16,6 +25,8 @@ import java.security.cert.X509Certificate
 import java.time.Instant
 import java.util.*
 import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
 import javax.net.ssl.*
 
 const val KEEPER_CLIENT_VERSION = "mj17.0.0"
@@ -39,14 +50,104 @@ interface KeyValueStorage {
     fun delete(key: String)
 }
 
+/**
+ * @param storage Configuration storage
+ * @param queryFunction Legacy replacement for the HTTPS call, prefer [transport]
+ * @param allowUnverifiedCertificate Skip server certificate validation - for testing only
+ * @param transport Sends requests to the Secrets Manager endpoint, pooled HTTPS transport by default
+ * @param executor Runs the network calls of the async API, shared daemon thread pool by default
+ * @param coalesceRequests Concurrent identical getSecrets calls share a single round trip and result
+ * @param parallelDecryptThreshold Decrypt records in parallel when a response has at least this many, 0 - always sequential
+ * @param decryptExecutor Runs parallel record decryption, common ForkJoin pool by default
+ * @param lazyDecrypt Keep fetched records encrypted and decrypt each one on first access.
+ * `records.size` decrypts all records to leave out the unparsable ones, [KeeperSecrets.entryCount] does not
+ * @param rateLimit Client side rate limiting and retries of throttled requests, disabled by default
+ * @param transmissionKeyPoolSize Number of transmission keys pre-computed in the background, 0 - generated per request
+ * @param recordCache Disk cache of the records used when Keeper can not be reached
+ * @param schemaWarningHandler Receives the differences between fetched records and the record schema of this SDK version, logged by default.
+ * Called concurrently from the decrypting threads with parallel or lazy decryption
+ * @param cryptoContext Imported client and server keys, a new context by default and shared by the copies of these options
+ */
 data class SecretsManagerOptions @JvmOverloads constructor(
     val storage: KeyValueStorage,
     val queryFunction: QueryFunction? = null,
-    val allowUnverifiedCertificate: Boolean = false
+    val allowUnverifiedCertificate: Boolean = false,
+    val transport: KeeperTransport? = null,
+    val executor: Executor? = null,
+    val coalesceRequests: Boolean = false,
+    val parallelDecryptThreshold: Int = 0,
+    val decryptExecutor: Executor? = null,
+    val lazyDecrypt: Boolean = false,
+    val rateLimit: RateLimitOptions? = null,
+    val transmissionKeyPoolSize: Int = 0,
+    val recordCache: KeeperRecordCache? = null,
+    val schemaWarningHandler: KeeperSchemaWarningHandler? = null,
+    val cryptoContext: KeeperCryptoContext = KeeperCryptoContext()
 ) {
     init {
         testSecureRandom()
     }
+
+    // explicit transport wins over the legacy query function, default is the shared pooled HTTPS transport
+    internal val resolvedTransport: KeeperTransport by lazy {
+        transport
+            ?: queryFunction?.let { QueryFunctionTransport(it) }
+            ?: HttpKeeperTransport.shared(allowUnverifiedCertificate)
+    }
+
+    /**
+     * Builds options for code paths that create a new options object per call, ex. per credential lookup.
+     * All options built by the same builder share the imported client and server keys,
+     * so a builder should be kept and reused rather than created per call.
+     */
+    class Builder @JvmOverloads constructor(private var storage: KeyValueStorage? = null) {
+        private var queryFunction: QueryFunction? = null
+        private var allowUnverifiedCertificate: Boolean = false
+        private var transport: KeeperTransport? = null
+        private var executor: Executor? = null
+        private var coalesceRequests: Boolean = false
+        private var parallelDecryptThreshold: Int = 0
+        private var decryptExecutor: Executor? = null
+        private var lazyDecrypt: Boolean = false
+        private var rateLimit: RateLimitOptions? = null
+        private var transmissionKeyPoolSize: Int = 0
+        private var recordCache: KeeperRecordCache? = null
+        private var schemaWarningHandler: KeeperSchemaWarningHandler? = null
+        private val cryptoContext = KeeperCryptoContext()
+
+        fun storage(storage: KeyValueStorage) = apply { this.storage = storage }
+        fun queryFunction(queryFunction: QueryFunction?) = apply { this.queryFunction = queryFunction }
+        fun allowUnverifiedCertificate(allow: Boolean) = apply { this.allowUnverifiedCertificate = allow }
+        fun transport(transport: KeeperTransport?) = apply { this.transport = transport }
+        fun executor(executor: Executor?) = apply { this.executor = executor }
+        fun coalesceRequests(coalesce: Boolean) = apply { this.coalesceRequests = coalesce }
+        fun parallelDecryptThreshold(threshold: Int) = apply { this.parallelDecryptThreshold = threshold }
+        fun decryptExecutor(executor: Executor?) = apply { this.decryptExecutor = executor }
+        fun lazyDecrypt(lazy: Boolean) = apply { this.lazyDecrypt = lazy }
+        fun rateLimit(rateLimit: RateLimitOptions?) = apply { this.rateLimit = rateLimit }
+        fun transmissionKeyPoolSize(size: Int) = apply { this.transmissionKeyPoolSize = size }
+        fun recordCache(recordCache: KeeperRecordCache?) = apply { this.recordCache = recordCache }
+        fun schemaWarningHandler(handler: KeeperSchemaWarningHandler?) = apply { this.schemaWarningHandler = handler }
+
+        fun build(): SecretsManagerOptions {
+            return SecretsManagerOptions(
+                storage ?: throw Exception("Storage is required to build the options"),
+                queryFunction,
+                allowUnverifiedCertificate,
+                transport,
+                executor,
+                coalesceRequests,
+                parallelDecryptThreshold,
+                decryptExecutor,
+                lazyDecrypt,
+                rateLimit,
+                transmissionKeyPoolSize,
+                recordCache,
+                schemaWarningHandler,
+                cryptoContext
+            )
+        }
+    }
 }
 
 data class QueryOptions @JvmOverloads constructor(
@@ -65,7 +166,7 @@ data class TransmissionKey(var publicKeyId: Int, var key: ByteArray, val encrypt
 data class KeeperHttpResponse(val statusCode: Int, val data: ByteArray)
 
 @Serializable
-data class KeeperError(val key_id: Int, val error: String)
+data class KeeperError(val key_id: Int = 0, val error: String)
 
 abstract class CommonPayload {
     abstract val clientVersion: String
@@ -165,10 +266,10 @@ private data class FileUploadPayload(
 
 data class EncryptedPayload(val payload: ByteArray, val signature: ByteArray)
 
-private data class FileUploadPayloadAndFile(val payload: FileUploadPayload, val encryptedFile: ByteArray)
+private data class FileUploadPayloadAndKey(val payload: FileUploadPayload, val fileRecordKey: ByteArray)
 
 @Serializable
-private data class SecretsManagerResponseFolder(
+internal data class SecretsManagerResponseFolder(
     val folderUid: String,
     val folderKey: String,
     val data: String?,
@@ -177,7 +278,7 @@ private data class SecretsManagerResponseFolder(
 )
 
 @Serializable
-private data class SecretsManagerResponseRecord(
+internal data class SecretsManagerResponseRecord(
     val recordUid: String,
     val recordKey: String,
     val data: String,
@@ -188,7 +289,7 @@ private data class SecretsManagerResponseRecord(
 )
 
 @Serializable
-private data class SecretsManagerResponseFile(
+internal data class SecretsManagerResponseFile(
     val fileUid: String,
     val fileKey: String,
     val data: String,
@@ -197,7 +298,7 @@ private data class SecretsManagerResponseFile(
 )
 
 @Serializable
-private data class SecretsManagerResponse(
+internal data class SecretsManagerResponse(
     val appData: String? = null,
     val encryptedAppKey: String?,
     val appOwnerPublicKey: String? = null,
@@ -226,18 +327,66 @@ private data class SecretsManagerAddFileResponse(
     val successStatusCode: Int
 )
 
+/**
+ * Records returned by [getSecrets].
+ *
+ * UID, title and type lookups go through hash indexes built on the first lookup of each kind.
+ * The title index reflects the record titles at the time it is built.
+ */
 data class KeeperSecrets(val appData: AppData, val records: List<KeeperRecord>, val expiresOn: Instant? = null, val warnings: List<String>? = null) {
+
+    private val recordsByUid: Map<String, KeeperRecord> by lazy { indexFirst(records) { it.recordUid } }
+    private val recordsByTitle: Map<String, List<KeeperRecord>> by lazy { records.groupBy { it.data.title } }
+    private val recordsByType: Map<String, List<KeeperRecord>> by lazy { records.groupBy { it.data.type } }
+
+    @OptIn(ExperimentalSerializationApi::class)
     fun getRecordByUid(recordUid: String): KeeperRecord? {
-        return records.find { it.recordUid == recordUid }
+        // lazily decrypted records are looked up by the plaintext UID without decrypting the others
+        if (records is LazyRecordList) {
+            return records.getByUid(recordUid)
+        }
+        return recordsByUid[recordUid]
     }
 
     fun getSecretsByTitle(recordTitle: String): List<KeeperRecord> {
-        return records.filter { it.data.title == recordTitle }
+        return recordsByTitle[recordTitle] ?: emptyList()
     }
 
     fun getSecretByTitle(recordTitle: String): KeeperRecord? {
-        return records.find { it.data.title == recordTitle }
+        return recordsByTitle[recordTitle]?.firstOrNull()
+    }
+
+    fun getSecretsByType(recordType: String): List<KeeperRecord> {
+        return recordsByType[recordType] ?: emptyList()
+    }
+
+    /**
+     * Number of records in the response. Same as `records.size` except with [SecretsManagerOptions.lazyDecrypt],
+     * where it does not decrypt the records and also counts the ones that turn out not to be parsable.
+     */
+    @OptIn(ExperimentalSerializationApi::class)
+    val entryCount: Int
+        get() = if (records is LazyRecordList) records.entryCount else records.size
+
+    // decoded record for the incremental sync - lazily decrypted records are not decrypted just to be compared
+    @OptIn(ExperimentalSerializationApi::class)
+    internal fun decodedRecord(recordUid: String): KeeperRecord? {
+        return if (records is LazyRecordList) records.peekByUid(recordUid) else getRecordByUid(recordUid)
+    }
+
+    @OptIn(ExperimentalSerializationApi::class)
+    internal fun recordRevisions(): Map<String, Long> {
+        return if (records is LazyRecordList) records.revisions() else records.associate { it.recordUid to it.revision }
+    }
+}
+
+// keeps the first item for every key, same as a linear find
+internal inline fun <T> indexFirst(items: List<T>, key: (T) -> String): Map<String, T> {
+    val index = HashMap<String, T>(items.size * 2)
+    for (item in items) {
+        index.putIfAbsent(key(item), item)
     }
+    return index
 }
 
 @Serializable
@@ -253,6 +402,9 @@ data class KeeperRecord(
     val revision: Long,
     val files: List<KeeperFile>? = null
 ) {
+    // digest of the data as decoded, set for the records of syncSecrets to tell whether the caller has edited them
+    internal var decodedDigest: ByteArray? = null
+
     fun getPassword(): String? {
         val passwordField = data.getField<Password>() ?: return null
         return if (passwordField.value.size > 0) passwordField.value[0] else null
@@ -275,12 +427,27 @@ data class KeeperRecord(
             passwordField.value[0] = newPassword
     }
 
+    private val filesByName: Map<String, KeeperFile> by lazy { indexFirst(files.orEmpty()) { it.data.name } }
+    private val filesByUid: Map<String, KeeperFile> by lazy { indexFirst(files.orEmpty()) { it.fileUid } }
+    // name, title or UID - the keys accepted by the file notation
+    private val filesById: Map<String, List<KeeperFile>> by lazy {
+        val index = HashMap<String, MutableList<KeeperFile>>()
+        files.orEmpty().forEach { file ->
+            setOf(file.data.name, file.data.title, file.fileUid).forEach { index.getOrPut(it) { mutableListOf() }.add(file) }
+        }
+        index
+    }
+
     fun getFileByName(fileName: String): KeeperFile? {
-        return files?.find { it.data.name == fileName }
+        return filesByName[fileName]
     }
 
     fun getFileByUid(fileUid: String): KeeperFile? {
-        return files?.find { it.fileUid == fileUid }
+        return filesByUid[fileUid]
+    }
+
+    internal fun findFiles(fileId: String): List<KeeperFile> {
+        return filesById[fileId] ?: emptyList()
     }
 }
 
@@ -311,6 +478,37 @@ data class KeeperFileUpload(
     val data: ByteArray
 )
 
+/**
+ * File to upload read from a stream of a known length - the file is encrypted and sent
+ * in fixed size buffers, memory use does not depend on the file size. The stream is read once and closed by the upload.
+ * A file created with [fromPath] is opened only when the upload starts sending it.
+ */
+class KeeperFileUploadStream private constructor(
+    val name: String,
+    val title: String,
+    val type: String?,
+    val size: Long,
+    private val input: InputStream?,
+    private val path: Path?
+) {
+    constructor(name: String, title: String, type: String?, size: Long, input: InputStream) : this(name, title, type, size, input, null)
+
+    internal fun open(): InputStream = input ?: Files.newInputStream(path!!)
+
+    // closes a stream given by the caller even when the upload fails before reading it
+    internal fun closeInput() {
+        input?.close()
+    }
+
+    companion object {
+        @JvmStatic
+        @JvmOverloads
+        fun fromPath(path: Path, title: String = path.fileName.toString(), type: String? = null): KeeperFileUploadStream {
+            return KeeperFileUploadStream(path.fileName.toString(), title, type, Files.size(path), null, path)
+        }
+    }
+}
+
 @JvmOverloads
 fun initializeStorage(storage: KeyValueStorage, oneTimeToken: String, hostName: String? = null) {
     val tokenParts = oneTimeToken.split(':')
@@ -352,8 +550,11 @@ fun initializeStorage(storage: KeyValueStorage, oneTimeToken: String, hostName:
 private const val FAST_SECURE_RANDOM_PREFIX = "Fast SecureRandom detected! "
 private const val SLOW_SECURE_RANDOM_PREFIX = "Slow SecureRandom detected! "
 private const val SLOW_SECURE_RANDOM_MESSAGE = " Install one of the following entropy sources to improve speed of random number generator on your platform: 'haveged' or 'rng-tools'"
+@Volatile
 private var SecureRandomTestResult = ""
+private val secureRandomTestLock = Any()
 
+// the random source is tested once per JVM, later calls only repeat the warning if it was slow
 private fun testSecureRandom() {
     if (SecureRandomTestResult.isNotBlank()) {
         if (SecureRandomTestResult.startsWith(SLOW_SECURE_RANDOM_PREFIX)) {
@@ -361,11 +562,19 @@ private fun testSecureRandom() {
         }
         return
     }
+    synchronized(secureRandomTestLock) {
+        if (SecureRandomTestResult.isBlank()) {
+            runSecureRandomTest()
+        }
+    }
+}
+
+private fun runSecureRandomTest() {
     val es = Executors.newSingleThreadExecutor()
     val future = es.submit(Callable {
-        // on some Linux machines the default secure random provider is blocking
+        // on some Linux machines the strong secure random provider is blocking
         // and waiting too long for entropy to accumulate.
-        val secureRandom = SecureRandom.getInstanceStrong()
+        val secureRandom = secureRandom()
         secureRandom.nextInt() // could block for many seconds
         true
     })
@@ -384,16 +593,77 @@ private fun testSecureRandom() {
         throw SecureRandomException(e.message ?: e.localizedMessage)
     } catch (e: Exception) {
         throw SecureRandomException(e.message ?: e.localizedMessage)
+    } finally {
+        es.shutdown()
     }
+}
 
-    es.shutdown()
+/**
+ * Runs the one time initialization of the SDK - the random source self-test, crypto provider lookup and
+ * key generation - so that the first request does not pay for it. Call it once at application start.
+ */
+fun warmUp() {
+    testSecureRandom()
+    val key = getRandomBytes(32)
+    decrypt(encrypt(key, key), key)
+    generateKeyPair()
 }
 
 @ExperimentalSerializationApi
 @JvmOverloads
 fun getSecrets(options: SecretsManagerOptions, recordsFilter: List<String> = emptyList()): KeeperSecrets {
-    val queryOptions = QueryOptions(recordsFilter)
-    val (secrets, justBound) = fetchAndDecryptSecrets(options, queryOptions)
+    return getSecrets2(options, QueryOptions(recordsFilter))
+}
+
+@ExperimentalSerializationApi
+@JvmOverloads
+fun getSecrets2(options: SecretsManagerOptions, queryOptions: QueryOptions? = null): KeeperSecrets {
+    if (!options.coalesceRequests) {
+        return fetchAndConfirmSecrets(options, queryOptions)
+    }
+    val request = coalesceSecretsRequest(options, queryOptions) {
+        val future = CompletableFuture<KeeperSecrets>()
+        try {
+            future.complete(fetchAndConfirmSecrets(options, queryOptions))
+        } catch (e: Exception) {
+            future.completeExceptionally(e)
+        }
+        future
+    }
+    try {
+        return request.get()
+    } catch (e: ExecutionException) {
+        val cause = if (e.cause is CompletionException) e.cause?.cause else e.cause
+        throw cause as? Exception ?: e
+    }
+}
+
+/**
+ * Result of [syncSecrets]
+ *
+ * @param secrets All records returned by the vault, unchanged and unedited records are the same objects as in the previous snapshot
+ * @param added UIDs of the records missing from the previous snapshot
+ * @param changed UIDs of the records with a new revision
+ * @param removed UIDs of the records no longer returned by the vault
+ */
+data class KeeperSecretsDelta(
+    val secrets: KeeperSecrets,
+    val added: List<String>,
+    val changed: List<String>,
+    val removed: List<String>
+)
+
+/**
+ * Incremental version of [getSecrets2].
+ *
+ * Records whose UID and revision match a record of the previous snapshot are not decrypted or parsed again,
+ * the previously decoded record is reused. A record edited in place since it was returned is decoded again instead,
+ * telling it apart costs one serialization of its data. Pass null as the previous snapshot on the first call.
+ */
+@ExperimentalSerializationApi
+@JvmOverloads
+fun syncSecrets(options: SecretsManagerOptions, previous: KeeperSecrets?, queryOptions: QueryOptions? = null): KeeperSecretsDelta {
+    val (secrets, justBound) = decryptSecrets(options, fetchSecrets(options, queryOptions), previous, trackEdits = true)
     if (justBound) {
         try {
             fetchAndDecryptSecrets(options, queryOptions)
@@ -401,12 +671,16 @@ fun getSecrets(options: SecretsManagerOptions, recordsFilter: List<String> = emp
             println(e)
         }
     }
-    return secrets
+    val previousRevisions = previous?.recordRevisions() ?: emptyMap()
+    val revisions = secrets.recordRevisions()
+    val added = revisions.keys.filter { !previousRevisions.containsKey(it) }
+    val changed = revisions.filter { (uid, revision) -> previousRevisions[uid].let { it != null && it != revision } }.keys.toList()
+    val removed = previousRevisions.keys.filter { !revisions.containsKey(it) }
+    return KeeperSecretsDelta(secrets, added, changed, removed)
 }
 
 @ExperimentalSerializationApi
-@JvmOverloads
-fun getSecrets2(options: SecretsManagerOptions, queryOptions: QueryOptions? = null): KeeperSecrets {
+private fun fetchAndConfirmSecrets(options: SecretsManagerOptions, queryOptions: QueryOptions?): KeeperSecrets {
     val (secrets, justBound) = fetchAndDecryptSecrets(options, queryOptions)
     if (justBound) {
         try {
@@ -418,6 +692,48 @@ fun getSecrets2(options: SecretsManagerOptions, queryOptions: QueryOptions? = nu
     return secrets
 }
 
+private data class SecretsRequestKey(
+    val hostname: String?,
+    val clientId: String?,
+    val recordsFilter: List<String>,
+    val foldersFilter: List<String>
+)
+
+private val secretsRequestsInFlight = ConcurrentHashMap<SecretsRequestKey, CompletableFuture<KeeperSecrets>>()
+
+// With SecretsManagerOptions.coalesceRequests identical get_secret requests issued while one is already
+// in flight wait for that request instead of making their own round trip and receive the same records
+internal fun coalesceSecretsRequest(
+    options: SecretsManagerOptions,
+    queryOptions: QueryOptions?,
+    request: () -> CompletableFuture<KeeperSecrets>
+): CompletableFuture<KeeperSecrets> {
+    if (!options.coalesceRequests) {
+        return request()
+    }
+    val key = SecretsRequestKey(
+        options.storage.getString(KEY_HOSTNAME),
+        options.storage.getString(KEY_CLIENT_ID),
+        queryOptions?.recordsFilter?.sorted() ?: emptyList(),
+        queryOptions?.foldersFilter?.sorted() ?: emptyList()
+    )
+    val shared = CompletableFuture<KeeperSecrets>()
+    val inFlight = secretsRequestsInFlight.putIfAbsent(key, shared)
+    if (inFlight != null) {
+        return inFlight
+    }
+    try {
+        request().whenComplete { secrets, error ->
+            secretsRequestsInFlight.remove(key, shared)
+            if (error != null) shared.completeExceptionally(error) else shared.complete(secrets)
+        }
+    } catch (e: Exception) {
+        secretsRequestsInFlight.remove(key, shared)
+        shared.completeExceptionally(e)
+    }
+    return shared
+}
+
 @ExperimentalSerializationApi
 fun getFolders(options: SecretsManagerOptions): List<KeeperFolder> {
     return fetchAndDecryptFolders(options)
@@ -472,20 +788,12 @@ fun tryGetNotationResults(options: SecretsManagerOptions, notation: String): Lis
 // Use TryGetNotationResults to just log errors and continue returning an empty string list on error.
 @ExperimentalSerializationApi
 fun getNotationResults(options: SecretsManagerOptions, notation: String): List<String> {
-    val result = mutableListOf<String>()
-
-    val parsedNotation = parseNotation(notation) // prefix, record, selector, footer
-    if (parsedNotation.size < 3)
-        throw Exception("Invalid notation '$notation'")
-
-    val selector = parsedNotation[2].text?.first ?: // type|title|notes or file|field|custom_field
-        throw Exception("Invalid notation '$notation'")
-    val recordToken = parsedNotation[1].text?.first ?: // UID or Title
-        throw Exception("Invalid notation '$notation'")
+    val compiled = compileNotation(notation)
+    val recordToken = compiled.recordToken
 
     // to minimize traffic - if it looks like a Record UID try to pull a single record
     var records = listOf<KeeperRecord>()
-    if (recordToken.matches(Regex("""^[A-Za-z0-9_-]{22}$"""))) {
+    if (compiled.isRecordUid) {
         val secrets = getSecrets(options, listOf<String>(recordToken))
         records = secrets.records
         if (records.size > 1)
@@ -495,92 +803,24 @@ fun getNotationResults(options: SecretsManagerOptions, notation: String): List<S
     // If RecordUID is not found - pull all records and search by title
     if (records.isEmpty()) {
         val secrets = getSecrets(options)
-        records = secrets.records.filter { it.data.title == recordToken }
-    }
-
-    if (records.size > 1)
-        throw Exception("Notation error - multiple records match record '$recordToken'")
-    if (records.isEmpty())
-        throw Exception("Notation error - no records match record '$recordToken'")
-
-    val record = records[0]
-    val parameter = parsedNotation[2].parameter?.first
-    val index1 = parsedNotation[2].index1?.first
-    //val index2 = parsedNotation[2].index2?.first
-
-    when (selector.lowercase()) {
-        "type" -> result.add(record.data.type)
-        "title" -> result.add(record.data.title)
-        "notes" -> if (record.data.notes != null) result.add(record.data.notes!!)
-        "file" -> {
-            if (parameter == null)
-                throw Exception("Notation error - Missing required parameter: filename or file UID for files in record '$recordToken'")
-            if ((record.files?.size ?: 0) < 1)
-                throw Exception("Notation error - Record $recordToken has no file attachments.")
-            val files = record.files!!.filter { parameter == it.data.name || parameter == it.data.title || parameter == it.fileUid }
-            // file searches do not use indexes and rely on unique file names or fileUid
-            if (files.size > 1)
-                throw Exception("Notation error - Record $recordToken has multiple files matching the search criteria '$parameter'")
-            if (files.isEmpty())
-                throw Exception("Notation error - Record $recordToken has no files matching the search criteria '$parameter'")
-            val contents = downloadFile(files[0])
-            val text = webSafe64FromBytes(contents)
-            result.add(text)
-        }
-        "field", "custom_field" -> {
-            if (parameter == null)
-                throw Exception("Notation error - Missing required parameter for the field (type or label): ex. /field/type or /custom_field/MyLabel")
-
-            val fields = when(selector.lowercase()) {
-                "field" -> record.data.fields
-                "custom_field" -> record.data.custom ?: mutableListOf<KeeperRecordField>()
-                else -> throw Exception("Notation error - Expected /field or /custom_field but found /$selector")
-            }
-
-            val flds = fields.filter { parameter == fieldType(it) || parameter == it.label }
-            if (flds.size > 1)
-                throw Exception("Notation error - Record $recordToken has multiple fields matching the search criteria '$parameter'")
-            if (flds.isEmpty())
-                throw Exception("Notation error - Record $recordToken has no fields matching the search criteria '$parameter'")
-            val field = flds[0]
-            //val fieldType = fieldType(field)
-
-            val idx = index1?.toIntOrNull() ?: -1 // -1 full value
-            // valid only if [] or missing - ex. /field/phone or /field/phone[]
-            if (idx == -1 && !(parsedNotation[2].index1?.second.isNullOrEmpty() || parsedNotation[2].index1?.second == "[]"))
-                throw Exception("Notation error - Invalid field index $idx")
-
-            val valuesCount = getFieldValuesCount(field)
-            if (idx >= valuesCount)
-                throw Exception("Notation error - Field index out of bounds $idx >= $valuesCount for field $parameter")
-
-            //val fullObjValue = (parsedNotation[2].index2?.second.isNullOrEmpty() || parsedNotation[2].index2?.second == "[]")
-            val objPropertyName = parsedNotation[2].index2?.first
-
-            val res = getFieldStringValues(field, idx, objPropertyName)
-            val expectedSize = if (idx >= 0) 1 else valuesCount
-            if (res.size != expectedSize)
-                println("Notation warning - extracted ${res.size} out of $valuesCount values for '$objPropertyName' property.")
-            if (res.isNotEmpty())
-                result.addAll(res)
-        }
-        else -> throw Exception("Invalid notation '$notation'")
+        records = secrets.getSecretsByTitle(recordToken)
     }
-    return result
+
+    return getNotationValues(compiled, records)
 }
 
 @ExperimentalSerializationApi
 fun deleteSecret(options: SecretsManagerOptions, recordUids: List<String>): SecretsManagerDeleteResponse {
     val payload = prepareDeletePayload(options.storage, recordUids)
     val responseData = postQuery(options, "delete_secret", payload)
-    return nonStrictJson.decodeFromString(bytesToString(responseData))
+    return nonStrictJson.decodeFromBytes(responseData)
 }
 
 @ExperimentalSerializationApi
 fun deleteFolder(options: SecretsManagerOptions, folderUids: List<String>, forceDeletion: Boolean = false): SecretsManagerDeleteResponse {
     val payload = prepareDeleteFolderPayload(options.storage, folderUids, forceDeletion)
     val responseData = postQuery(options, "delete_folder", payload)
-    return nonStrictJson.decodeFromString(bytesToString(responseData))
+    return nonStrictJson.decodeFromBytes(responseData)
 }
 
 @ExperimentalSerializationApi
@@ -596,6 +836,91 @@ fun completeTransaction(options: SecretsManagerOptions, recordUid: String, rollb
     postQuery(options, path, payload)
 }
 
+data class KeeperRecordUpdateResult(
+    val recordUid: String,
+    val error: Exception?
+) {
+    val isSuccess: Boolean
+        get() = error == null
+}
+
+// Updates the records with up to `maxInFlight` requests at a time on options.executor (a shared daemon thread pool
+// by default), payloads are encrypted and signed on the request threads. Throttled requests are retried after
+// a backoff of the whole batch. With options.rateLimit set the requests are also rate limited,
+// without it `maxInFlight` alone bounds the load. A failed record does not stop the others,
+// results are in the order of the records.
+// For transactional updates call completeTransactions with the UIDs of the successful results.
+@ExperimentalSerializationApi
+@JvmOverloads
+fun updateSecrets(
+    options: SecretsManagerOptions,
+    records: List<KeeperRecord>,
+    transactionType: UpdateTransactionType? = null,
+    maxInFlight: Int = 8
+): List<KeeperRecordUpdateResult> {
+    val rateLimiter = batchRateLimiter(options)
+    return runBatch(options, records.map { it.recordUid }, maxInFlight) { i ->
+        val payload = prepareUpdatePayload(options.storage, records[i], transactionType)
+        postQuery(options, "update_secret", payload, rateLimiter)
+    }
+}
+
+// Finalizes or rolls back the transactions started by updateSecrets, one request per record in the same window
+@ExperimentalSerializationApi
+@JvmOverloads
+fun completeTransactions(
+    options: SecretsManagerOptions,
+    recordUids: List<String>,
+    rollback: Boolean = false,
+    maxInFlight: Int = 8
+): List<KeeperRecordUpdateResult> {
+    val path = if (rollback) "rollback_secret_update" else "finalize_secret_update"
+    val rateLimiter = batchRateLimiter(options)
+    return runBatch(options, recordUids, maxInFlight) { i ->
+        postQuery(options, path, prepareCompleteTransactionPayload(options.storage, recordUids[i]), rateLimiter)
+    }
+}
+
+// the limiter of options.rateLimit, without it one that only backs off and retries the throttled requests of the batch
+private fun batchRateLimiter(options: SecretsManagerOptions): ClientRateLimiter {
+    return rateLimiterOf(options) ?: ClientRateLimiter(RateLimitOptions(), limitRate = false)
+}
+
+// `maxInFlight` workers on the options executor take the records in order until none are left
+private fun runBatch(
+    options: SecretsManagerOptions,
+    recordUids: List<String>,
+    maxInFlight: Int,
+    request: (Int) -> Unit
+): List<KeeperRecordUpdateResult> {
+    if (maxInFlight < 1) {
+        throw Exception("Number of requests in flight must be positive")
+    }
+    if (recordUids.isEmpty()) {
+        return emptyList()
+    }
+    val results = arrayOfNulls<KeeperRecordUpdateResult>(recordUids.size)
+    val next = AtomicInteger()
+    val workers = (1..minOf(maxInFlight, recordUids.size)).map {
+        CompletableFuture.runAsync({
+            while (true) {
+                val i = next.getAndIncrement()
+                if (i >= recordUids.size) {
+                    break
+                }
+                results[i] = try {
+                    request(i)
+                    KeeperRecordUpdateResult(recordUids[i], null)
+                } catch (e: Exception) {
+                    KeeperRecordUpdateResult(recordUids[i], e)
+                }
+            }
+        }, options.asyncExecutor)
+    }
+    CompletableFuture.allOf(*workers.toTypedArray()).join()
+    return results.map { it!! }
+}
+
 @ExperimentalSerializationApi
 fun addCustomField(record: KeeperRecord, field: KeeperRecordField) {
     if (field.javaClass.superclass == KeeperRecordField::class.java) {
@@ -648,14 +973,32 @@ fun updateFolder(options: SecretsManagerOptions, folderUid: String, folderName:
 
 @ExperimentalSerializationApi
 fun uploadFile(options: SecretsManagerOptions, ownerRecord: KeeperRecord, file: KeeperFileUpload): String {
-    val payloadAndFile = prepareFileUploadPayload(options.storage, ownerRecord, file)
-    val responseData = postQuery(options, "add_file", payloadAndFile.payload)
-    val response = nonStrictJson.decodeFromString<SecretsManagerAddFileResponse>(bytesToString(responseData))
-    val uploadResult = uploadFile(response.url, response.parameters, payloadAndFile.encryptedFile)
+    val payloadAndKey = prepareFileUploadPayload(options.storage, ownerRecord, file.name, file.title, file.type, file.data.size.toLong())
+    val encryptedFile = encrypt(file.data, payloadAndKey.fileRecordKey)
+    return uploadFile(options, payloadAndKey.payload) { it.write(encryptedFile) }
+}
+
+@ExperimentalSerializationApi
+fun uploadFile(options: SecretsManagerOptions, ownerRecord: KeeperRecord, file: KeeperFileUploadStream): String {
+    try {
+        val payloadAndKey = prepareFileUploadPayload(options.storage, ownerRecord, file.name, file.title, file.type, file.size)
+        return uploadFile(options, payloadAndKey.payload) { output ->
+            file.open().use { encryptStream(it, file.size, payloadAndKey.fileRecordKey, output) }
+        }
+    } finally {
+        file.closeInput()
+    }
+}
+
+@ExperimentalSerializationApi
+private fun uploadFile(options: SecretsManagerOptions, payload: FileUploadPayload, writeFile: (OutputStream) -> Unit): String {
+    val responseData = postQuery(options, "add_file", payload)
+    val response = nonStrictJson.decodeFromBytes<SecretsManagerAddFileResponse>(responseData)
+    val uploadResult = uploadFile(response.url, response.parameters, payload.fileSize.toLong(), writeFile)
     if (uploadResult.statusCode != response.successStatusCode) {
         throw Exception("Upload failed (${bytesToString(uploadResult.data)}), code ${uploadResult.statusCode}")
     }
-    return payloadAndFile.payload.fileRecordUid
+    return payload.fileRecordUid
 }
 
 fun downloadFile(file: KeeperFile): ByteArray {
@@ -669,63 +1012,240 @@ fun downloadThumbnail(file: KeeperFile): ByteArray {
     return downloadFile(file, file.thumbnailUrl)
 }
 
+// the whole file is decrypted and authenticated by the JCE provider
 private fun downloadFile(file: KeeperFile, url: String): ByteArray {
-    with(URI.create(url).toURL().openConnection() as HttpsURLConnection) {
-        requestMethod = "GET"
-        val statusCode = responseCode
-        val data = when {
-            errorStream != null -> errorStream.readBytes()
-            else -> inputStream.readBytes()
+    return decrypt(fetchFile(url) { it.readBytes() }, file.fileKey)
+}
+
+/**
+ * Downloads and decrypts the file into the stream. The file is decrypted in fixed size buffers into a temporary file,
+ * authenticated by the provider and only then copied to the stream, so nothing unauthenticated reaches the stream.
+ * Memory use does not depend on the file size when the provider streams GCM decryption (Bouncy Castle does,
+ * the JDK provider holds the file in memory until it is authenticated). The stream is not closed.
+ */
+fun downloadFile(file: KeeperFile, output: OutputStream) {
+    downloadFile(file, file.url, output)
+}
+
+/**
+ * Channel version of [downloadFile], see the OutputStream overload. The channel is not closed.
+ */
+fun downloadFile(file: KeeperFile, channel: WritableByteChannel) {
+    downloadFile(file, file.url, Channels.newOutputStream(channel))
+}
+
+/**
+ * Downloads and decrypts the file to the path. The data goes to a temporary file in the same directory
+ * that replaces the target only after the whole file is authenticated, so a failed download leaves the target untouched.
+ * See the OutputStream overload for the memory use.
+ */
+fun downloadFile(file: KeeperFile, path: Path) {
+    downloadFile(file, path) { read -> fetchFile(file.url, read) }
+}
+
+// fetch - sends the GET for the file and passes the response body to its argument
+private fun downloadFile(file: KeeperFile, path: Path, fetch: ((InputStream) -> Unit) -> Unit) {
+    val directory = path.toAbsolutePath().parent
+    val temporary = Files.createTempFile(directory, ".${path.fileName}", ".download")
+    try {
+        Files.newOutputStream(temporary).use { output -> fetch { decryptStream(it, file.fileKey, output) } }
+        try {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } catch (e: AtomicMoveNotSupportedException) {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING)
         }
-        if (statusCode != HTTP_OK) {
-            throw Exception(String(data))
+    } finally {
+        Files.deleteIfExists(temporary)
+    }
+}
+
+private fun downloadFile(file: KeeperFile, url: String, output: OutputStream) {
+    val temporary = Files.createTempFile("keeper", ".download")
+    try {
+        Files.newOutputStream(temporary).use { decrypted -> fetchFile(url) { decryptStream(it, file.fileKey, decrypted) } }
+        Files.copy(temporary, output)
+    } finally {
+        Files.deleteIfExists(temporary)
+    }
+}
+
+private fun <T> fetchFile(url: String, read: (InputStream) -> T): T {
+    return HttpKeeperTransport.shared(false).fetch(url, false, read)
+}
+
+/**
+ * Outcome of a single file of [downloadFiles]
+ *
+ * @param path Where the file was saved, also set for failed downloads
+ * @param error Error of the last attempt, null when the file was downloaded
+ * @param attempts Number of attempts made
+ */
+data class KeeperFileDownloadResult(
+    val file: KeeperFile,
+    val path: Path,
+    val error: Exception?,
+    val attempts: Int
+) {
+    val isSuccess: Boolean
+        get() = error == null
+}
+
+/**
+ * Downloads all files attached to the records, see [downloadFiles]
+ */
+@JvmOverloads
+fun downloadRecordFiles(
+    records: List<KeeperRecord>,
+    targetDir: Path,
+    parallelism: Int = 8,
+    maxAttempts: Int = 3,
+    transport: KeeperFileTransport = HttpKeeperTransport.shared(false)
+): List<KeeperFileDownloadResult> {
+    return downloadFiles(records.flatMap { it.files.orEmpty() }, targetDir, parallelism, maxAttempts, transport)
+}
+
+/**
+ * Downloads and decrypts the files into the directory using up to `parallelism` concurrent downloads.
+ * With the HTTPS transport connections are reused between downloads to the same host. At most
+ * [HttpTransportOptions.maxConnectionsPerHost] downloads run against one host, the others wait for a free connection
+ * as long as it takes, regardless of [HttpTransportOptions.acquireTimeoutMillis] - pass a transport with more
+ * connections per host to run more of them at once.
+ * A failed download is retried with a jittered exponential delay, a file that still fails is reported in its result
+ * and does not stop the others. Files are saved under their names, a name already used by an earlier file
+ * of the same call is prefixed with the file UID. Names are compared ignoring case, so two files do not overwrite
+ * each other on case-insensitive file systems (Windows, macOS).
+ *
+ * @param transport Transport of the downloads, the shared HTTPS transport by default
+ * @return Results in the order of the files
+ */
+@JvmOverloads
+fun downloadFiles(
+    files: List<KeeperFile>,
+    targetDir: Path,
+    parallelism: Int = 8,
+    maxAttempts: Int = 3,
+    transport: KeeperFileTransport = HttpKeeperTransport.shared(false)
+): List<KeeperFileDownloadResult> {
+    if (parallelism < 1 || maxAttempts < 1) {
+        throw Exception("Parallelism and number of attempts must be positive")
+    }
+    Files.createDirectories(targetDir)
+    // case-folded names already taken by earlier files
+    val usedNames = HashSet<String>()
+    val targets = files.map { file ->
+        // only the file name part is used, so a name can not point outside the target directory
+        var name = Paths.get(file.data.name.ifBlank { file.fileUid }).fileName?.toString() ?: file.fileUid
+        if (name == "." || name == ".." || !usedNames.add(name.lowercase(Locale.ROOT))) {
+            name = "${file.fileUid}_$name"
+            usedNames.add(name.lowercase(Locale.ROOT))
+        }
+        targetDir.resolve(name)
+    }
+    val threadCounter = AtomicInteger()
+    val executor = Executors.newFixedThreadPool(minOf(parallelism, maxOf(files.size, 1))) { runnable ->
+        val thread = Thread(runnable, "keeper-file-download-${threadCounter.incrementAndGet()}")
+        thread.isDaemon = true
+        thread
+    }
+    try {
+        val results = files.mapIndexed { i, file ->
+            executor.submit(Callable { downloadFileWithRetries(file, targets[i], maxAttempts, transport) })
         }
-        return decrypt(data, file.fileKey)
+        return results.map { it.get() }
+    } finally {
+        executor.shutdownNow()
     }
 }
 
-private fun uploadFile(url: String, parameters: String, fileData: ByteArray): KeeperHttpResponse {
-    var statusCode: Int
-    var data: ByteArray
+private fun downloadFileWithRetries(file: KeeperFile, path: Path, maxAttempts: Int, transport: KeeperFileTransport): KeeperFileDownloadResult {
+    var attempt = 0
+    while (true) {
+        attempt++
+        try {
+            downloadFile(file, path) { read -> transport.download(file.url, read) }
+            return KeeperFileDownloadResult(file, path, null, attempt)
+        } catch (e: Exception) {
+            if (attempt >= maxAttempts) {
+                return KeeperFileDownloadResult(file, path, e, attempt)
+            }
+            val ceiling = 500L shl (attempt - 1)
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1))
+        }
+    }
+}
+
+// multipart body of a known length - sent in fixed length streaming mode so HttpURLConnection does not buffer the file
+private fun uploadFile(url: String, parameters: String, fileSize: Long, writeFile: (OutputStream) -> Unit): KeeperHttpResponse {
     val boundary = String.format("----------%x", Instant.now().epochSecond)
     val boundaryBytes: ByteArray = stringToBytes("\r\n--$boundary")
     val paramJson = Json.parseToJsonElement(parameters) as JsonObject
-    with(URI.create(url).toURL().openConnection() as HttpsURLConnection) {
-        requestMethod = "POST"
-        useCaches = false
-        doInput = true
-        doOutput = true
-        setRequestProperty("Content-Type", "multipart/form-data; boundary=$boundary")
-        with(outputStream) {
-            for (param in paramJson.entries) {
-                write(boundaryBytes)
-                write(stringToBytes("\r\nContent-Disposition: form-data; name=\"${param.key}\"\r\n\r\n${param.value.jsonPrimitive.content}"))
-            }
-            write(boundaryBytes)
-            write(stringToBytes("\r\nContent-Disposition: form-data; name=\"file\"\r\nContent-Type: application/octet-stream\r\n\r\n"))
-            write(fileData)
-            write(boundaryBytes)
-            write(stringToBytes("--\r\n"))
-        }
-        statusCode = responseCode
-        data = when {
-            errorStream != null -> errorStream.readBytes()
-            else -> inputStream.readBytes()
+    val header = ByteArrayOutputStream()
+    for (param in paramJson.entries) {
+        header.write(boundaryBytes)
+        header.write(stringToBytes("\r\nContent-Disposition: form-data; name=\"${param.key}\"\r\n\r\n${param.value.jsonPrimitive.content}"))
+    }
+    header.write(boundaryBytes)
+    header.write(stringToBytes("\r\nContent-Disposition: form-data; name=\"file\"\r\nContent-Type: application/octet-stream\r\n\r\n"))
+    val footer = boundaryBytes + stringToBytes("--\r\n")
+    return HttpKeeperTransport.shared(false).execute(url) { connection ->
+        connection.requestMethod = "POST"
+        connection.doInput = true
+        connection.doOutput = true
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=$boundary")
+        connection.setFixedLengthStreamingMode(header.size() + fileSize + footer.size)
+        connection.outputStream.use { output ->
+            header.writeTo(output)
+            writeFile(output)
+            output.write(footer)
         }
+        readResponse(connection)
     }
-    return KeeperHttpResponse(statusCode, data)
 }
 
 @ExperimentalSerializationApi
 private fun fetchAndDecryptSecrets(
     options: SecretsManagerOptions,
     queryOptions: QueryOptions?
+): Pair<KeeperSecrets, Boolean> {
+    return decryptSecrets(options, fetchSecrets(options, queryOptions))
+}
+
+// network leg of get_secret - returns the response with all the keys and records still encrypted
+@ExperimentalSerializationApi
+internal fun fetchSecrets(
+    options: SecretsManagerOptions,
+    queryOptions: QueryOptions?
+): SecretsManagerResponse {
+    val payload = prepareGetPayload(options.storage, queryOptions)
+    val cache = options.recordCache
+    val responseData = try {
+        postQuery(options, "get_secret", payload)
+    } catch (e: IOException) {
+        // network failure - fall back to the records cached on disk
+        return cache?.load(options.storage, queryOptions) ?: throw e
+    }
+    val response = nonStrictJson.decodeFromBytes<SecretsManagerResponse>(responseData)
+    // the application key of a first response is not stored yet, the confirmation call right after it fills the cache
+    if (cache != null && response.encryptedAppKey == null) {
+        try {
+            val complete = queryOptions == null || (queryOptions.recordsFilter.isEmpty() && queryOptions.foldersFilter.isEmpty())
+            cache.store(options.storage, response, complete)
+        } catch (e: Exception) {
+            println("Records could not be saved to the cache: ${e.message}")
+        }
+    }
+    return response
+}
+
+// CPU leg of get_secret - binds the application key if needed and decrypts the records
+@ExperimentalSerializationApi
+internal fun decryptSecrets(
+    options: SecretsManagerOptions,
+    response: SecretsManagerResponse,
+    previous: KeeperSecrets? = null,
+    trackEdits: Boolean = false
 ): Pair<KeeperSecrets, Boolean> {
     val storage = options.storage
-    val payload = prepareGetPayload(storage, queryOptions)
-    val responseData = postQuery(options, "get_secret", payload)
-    val jsonString = bytesToString(responseData)
-    val response = nonStrictJson.decodeFromString<SecretsManagerResponse>(jsonString)
     var justBound = false
     val appKey: ByteArray
     if (response.encryptedAppKey != null) {
@@ -741,33 +1261,31 @@ private fun fetchAndDecryptSecrets(
     } else {
         appKey = storage.getBytes(KEY_APP_KEY) ?: throw Exception("App key is missing from the storage")
     }
-    val records: MutableList<KeeperRecord> = mutableListOf()
-    if (response.records != null) {
-        response.records.forEach {
-            val recordKey = decrypt(it.recordKey, appKey)
-            val decryptedRecord = decryptRecord(it, recordKey)
-            if (decryptedRecord != null) {
-                records.add(decryptedRecord)
-            }
+    val entries: MutableList<EncryptedRecordEntry> = mutableListOf()
+    response.records?.forEach {
+        entries.add(EncryptedRecordEntry(it, appKey, schemaWarningHandler = options.schemaWarningHandler, trackEdits = trackEdits))
+    }
+    response.folders?.forEach { folder ->
+        val folderKey = decrypt(folder.folderKey, appKey)
+        folder.records!!.forEach { record ->
+            entries.add(EncryptedRecordEntry(record, folderKey, folder.folderUid, folderKey, options.schemaWarningHandler, trackEdits))
         }
     }
-    if (response.folders != null) {
-        response.folders.forEach { folder ->
-            val folderKey = decrypt(folder.folderKey, appKey)
-            folder.records!!.forEach { record ->
-                val recordKey = decrypt(record.recordKey, folderKey)
-                val decryptedRecord = decryptRecord(record, recordKey)
-                if (decryptedRecord != null) {
-                    decryptedRecord.folderUid = folder.folderUid
-                    decryptedRecord.folderKey = folderKey
-                    records.add(decryptedRecord)
-                }
+    // records not modified since the previous snapshot, neither in the vault nor by the caller, are reused as is
+    val reused = arrayOfNulls<KeeperRecord>(entries.size)
+    if (previous != null) {
+        entries.forEachIndexed { i, entry ->
+            val record = previous.decodedRecord(entry.record.recordUid)
+            if (record != null && record.revision == entry.record.revision && record.folderUid == entry.folderUid &&
+                record.innerFolderUid == entry.record.innerFolderUid && isUnedited(record)) {
+                reused[i] = record
             }
         }
     }
+    val records = if (options.lazyDecrypt) LazyRecordList(entries, reused) else decryptRecords(options, entries, reused)
     val appData = if (response.appData == null)
         AppData("", "") else
-        nonStrictJson.decodeFromString(bytesToString(decrypt(webSafe64ToBytes(response.appData), appKey)))
+        nonStrictJson.decodeFromBytes(decrypt(webSafe64ToBytes(response.appData), appKey))
     val warnings = if (response.warnings == null || response.warnings.isEmpty()) null else response.warnings
     val secrets = KeeperSecrets(
         appData,
@@ -777,8 +1295,181 @@ private fun fetchAndDecryptSecrets(
     return Pair(secrets, justBound)
 }
 
+// response record along with the key its record key is encrypted with - app key or shared folder key
+internal class EncryptedRecordEntry(
+    val record: SecretsManagerResponseRecord,
+    val wrappingKey: ByteArray,
+    val folderUid: String? = null,
+    val folderKey: ByteArray? = null,
+    val schemaWarningHandler: KeeperSchemaWarningHandler? = null,
+    val trackEdits: Boolean = false
+)
+
+@ExperimentalSerializationApi
+internal fun decryptRecordEntry(entry: EncryptedRecordEntry): KeeperRecord? {
+    val recordKey = decrypt(entry.record.recordKey, entry.wrappingKey)
+    val decryptedRecord = decryptRecord(entry.record, recordKey, entry.schemaWarningHandler) ?: return null
+    if (entry.folderUid != null) {
+        decryptedRecord.folderUid = entry.folderUid
+        decryptedRecord.folderKey = entry.folderKey
+    }
+    if (entry.trackEdits) {
+        decryptedRecord.decodedDigest = sha256(Json.encodeToBytes(decryptedRecord.data))
+    }
+    return decryptedRecord
+}
+
+// records of syncSecrets are handed out mutable - one is reused only while its data is still as decoded
+private fun isUnedited(record: KeeperRecord): Boolean {
+    val digest = record.decodedDigest ?: return false
+    return digest.contentEquals(sha256(Json.encodeToBytes(record.data)))
+}
+
+// Decrypts the records sequentially, or in parallel batches once there are at least
+// SecretsManagerOptions.parallelDecryptThreshold records. Record order is preserved either way.
 @ExperimentalSerializationApi
-private fun decryptRecord(record: SecretsManagerResponseRecord, recordKey: ByteArray): KeeperRecord? {
+private fun decryptRecords(
+    options: SecretsManagerOptions,
+    entries: List<EncryptedRecordEntry>,
+    reused: Array<KeeperRecord?>
+): List<KeeperRecord> {
+    val pending = entries.indices.filter { reused[it] == null }
+    if (options.parallelDecryptThreshold <= 0 || pending.size < options.parallelDecryptThreshold) {
+        pending.forEach { reused[it] = decryptRecordEntry(entries[it]) }
+        return reused.filterNotNull()
+    }
+    val executor = options.decryptExecutor ?: ForkJoinPool.commonPool()
+    val batchSize = maxOf(1, pending.size / (Runtime.getRuntime().availableProcessors() * 4))
+    val batches = pending.chunked(batchSize).map { batch ->
+        CompletableFuture.runAsync({ batch.forEach { reused[it] = decryptRecordEntry(entries[it]) } }, executor)
+    }
+    try {
+        // join() makes the writes of the batches visible to this thread
+        batches.forEach { it.join() }
+    } catch (e: CompletionException) {
+        throw e.cause as? Exception ?: e
+    }
+    return reused.filterNotNull()
+}
+
+// Record list for SecretsManagerOptions.lazyDecrypt - keeps the encrypted records and decrypts
+// each one the first time it is accessed. Record UIDs are not encrypted so UID lookups decrypt only the match.
+// Records that can not be parsed are left out as in the eager path: iteration and get(i) skip them as they go,
+// so get(i) decrypts the records up to the i-th one. Only size has to decrypt all records, entryCount does not.
+@ExperimentalSerializationApi
+internal class LazyRecordList(
+    private val entries: List<EncryptedRecordEntry>,
+    reused: Array<KeeperRecord?> = arrayOfNulls(entries.size)
+) : AbstractList<KeeperRecord>() {
+
+    // decrypted record, Undecodable or null when not decrypted yet
+    private val decrypted = AtomicReferenceArray<Any?>(entries.size)
+    private val indexByUid: Map<String, Int> by lazy {
+        val index = HashMap<String, Int>(entries.size * 2)
+        entries.forEachIndexed { i, entry -> index.putIfAbsent(entry.record.recordUid, i) }
+        index
+    }
+    // entry positions of the parsable records found so far, guarded by itself
+    private val positions = IntArray(entries.size)
+    private var found = 0
+    private var scanned = 0
+
+    init {
+        reused.forEachIndexed { i, record -> decrypted.set(i, record) }
+    }
+
+    // number of records in the response, parsable or not
+    val entryCount: Int
+        get() = entries.size
+
+    override val size: Int
+        get() = scan(Int.MAX_VALUE)
+
+    override fun get(index: Int): KeeperRecord {
+        if (index < 0 || scan(index + 1) <= index) {
+            throw IndexOutOfBoundsException("Index: $index")
+        }
+        return recordAt(positions[index])!!
+    }
+
+    // decrypts further entries until `count` parsable records are known, returns the number known
+    private fun scan(count: Int): Int {
+        synchronized(positions) {
+            while (found < count && scanned < entries.size) {
+                if (recordAt(scanned) != null) {
+                    positions[found++] = scanned
+                }
+                scanned++
+            }
+            return found
+        }
+    }
+
+    override fun iterator(): MutableIterator<KeeperRecord> {
+        return object : MutableIterator<KeeperRecord> {
+            private var position = 0
+            private var pending: KeeperRecord? = null
+
+            override fun hasNext(): Boolean {
+                while (pending == null && position < entries.size) {
+                    pending = recordAt(position++)
+                }
+                return pending != null
+            }
+
+            override fun next(): KeeperRecord {
+                if (!hasNext()) {
+                    throw NoSuchElementException()
+                }
+                val record = pending!!
+                pending = null
+                return record
+            }
+
+            override fun remove() {
+                throw UnsupportedOperationException()
+            }
+        }
+    }
+
+    fun getByUid(recordUid: String): KeeperRecord? {
+        val index = indexByUid[recordUid] ?: return null
+        return recordAt(index)
+    }
+
+    // already decrypted record, never triggers decryption
+    fun peekByUid(recordUid: String): KeeperRecord? {
+        val index = indexByUid[recordUid] ?: return null
+        return decrypted.get(index) as? KeeperRecord
+    }
+
+    fun revisions(): Map<String, Long> {
+        return entries.filterIndexed { i, _ -> decrypted.get(i) !== Undecodable }
+            .associate { it.record.recordUid to it.record.revision }
+    }
+
+    private fun recordAt(position: Int): KeeperRecord? {
+        when (val value = decrypted.get(position)) {
+            Undecodable -> return null
+            is KeeperRecord -> return value
+        }
+        val record = decryptRecordEntry(entries[position])
+        // concurrent readers may decrypt the same record - keep the first copy
+        if (decrypted.compareAndSet(position, null, record ?: Undecodable)) {
+            return record
+        }
+        return decrypted.get(position) as? KeeperRecord
+    }
+
+    private object Undecodable
+}
+
+@ExperimentalSerializationApi
+private fun decryptRecord(
+    record: SecretsManagerResponseRecord,
+    recordKey: ByteArray,
+    schemaWarningHandler: KeeperSchemaWarningHandler?
+): KeeperRecord? {
     val decryptedRecord = decrypt(record.data, recordKey)
 
     val files: MutableList<KeeperFile> = mutableListOf()
@@ -791,7 +1482,7 @@ private fun decryptRecord(record: SecretsManagerResponseRecord, recordKey: ByteA
                 KeeperFile(
                     fileKey,
                     it.fileUid,
-                    Json.decodeFromString(bytesToString(decryptedFile)),
+                    Json.decodeFromBytes(decryptedFile),
                     it.url,
                     it.thumbnailUrl
                 )
@@ -799,64 +1490,9 @@ private fun decryptRecord(record: SecretsManagerResponseRecord, recordKey: ByteA
         }
     }
 
-    // When SDK is behind/ahead of record/field type definitions then
-    // strict mapping between JSON attributes and object properties
-    // will fail on any unknown field/key - currently just log the error
-    // and continue without the field - nb! field will be lost on save
-    var recordData: KeeperRecordData? = null
-    try {
-        recordData = Json.decodeFromString<KeeperRecordData>(bytesToString(decryptedRecord))
-    } catch (e: Exception) {
-        // Get record type safely without parsing the entire record
-        val recordType = try {
-            val jsonElement = Json.parseToJsonElement(bytesToString(decryptedRecord))
-            jsonElement.jsonObject["type"]?.jsonPrimitive?.content ?: "unknown"
-        } catch (_: Exception) {
-            "unknown"
-        }
-
-        // Get detailed error information
-        val errorDetails = when (e) {
-            is SerializationException -> {
-                when {
-                    e.message?.contains("Polymorphic serializer was not found") == true -> {
-                        val unknownType = e.message?.substringAfter("class discriminator '")?.substringBefore("'")
-                        "Unknown field type: '$unknownType'"
-                    }
-                    e.message?.contains("Encountered unknown key") == true -> {
-                        val unknownKey = e.message?.substringAfter("unknown key '")?.substringBefore("'")
-                        "Unknown field property: '$unknownKey'"
-                    }
-                    else -> "Serialization error: ${e.message}"
-                }
-            }
-            else -> "Unexpected error: ${e.message}"
-        }
-
-        println("""
-        Record ${record.recordUid} (type: $recordType) parsing error:
-        Error: $errorDetails
-        This may occur if the Keeper Secrets Manager (KSM) SDK version you're using is not compatible with the record's data schema.
-        Please ensure that you are using the latest version of the KSM SDK. If the issue persists, contact support@keepersecurity.com for assistance.
-        """.trimIndent())
-
-        try {
-            // Attempt to parse with non-strict JSON parser for recovery
-            recordData = nonStrictJson.decodeFromString<KeeperRecordData>(bytesToString(decryptedRecord))
-        } catch (e2: Exception) {
-            val secondaryError = when (e2) {
-                is SerializationException -> {
-                    "Serialization error during non-strict parsing: ${e2.message}"
-                }
-                else -> "Unexpected error during non-strict parsing: ${e2.message}"
-            }
-            println("""
-            Failed to parse record ${record.recordUid} (type: $recordType) even with non-strict parser.
-            Error: $secondaryError
-            Record will be skipped.
-            """.trimIndent())
-        }
-    }
+    // When SDK is behind/ahead of record/field type definitions the record is still decoded,
+    // unknown fields and properties are kept and the differences are reported
+    val recordData = decodeRecordData(record.recordUid, decryptedRecord, schemaWarningHandler)
 
     return if (recordData != null) KeeperRecord(recordKey, record.recordUid, null, null, record.innerFolderUid, recordData, record.revision, files) else null
 }
@@ -868,8 +1504,7 @@ private fun fetchAndDecryptFolders(
     val storage = options.storage
     val payload = prepareGetPayload(storage, null)
     val responseData = postQuery(options, "get_folders", payload)
-    val jsonString = bytesToString(responseData)
-    val response = nonStrictJson.decodeFromString<SecretsManagerResponse>(jsonString)
+    val response = nonStrictJson.decodeFromBytes<SecretsManagerResponse>(responseData)
     if (response.folders == null) {
         return emptyList()
     }
@@ -883,8 +1518,7 @@ private fun fetchAndDecryptFolders(
             decrypt(folder.folderKey, sharedFolderKey, true)
         }
         val decryptedData = decrypt(folder.data!!, folderKey, true)
-        val folderNameJson = bytesToString(decryptedData)
-        val folderName = nonStrictJson.decodeFromString<KeeperFolderName>(folderNameJson)
+        val folderName = nonStrictJson.decodeFromBytes<KeeperFolderName>(decryptedData)
         folders.add(KeeperFolder(folderKey, folder.folderUid, folder.parent, folderName.name))
     }
     return folders
@@ -951,7 +1585,7 @@ private fun prepareUpdatePayload(
     transactionType: UpdateTransactionType? = null
 ): UpdatePayload {
     val clientId = storage.getString(KEY_CLIENT_ID) ?: throw Exception("Client Id is missing from the configuration")
-    val recordBytes = stringToBytes(Json.encodeToString(record.data))
+    val recordBytes = Json.encodeToBytes(record.data)
     val encryptedRecord = encrypt(recordBytes, record.recordKey)
     return UpdatePayload(KEEPER_CLIENT_VERSION, clientId, record.recordUid, webSafe64FromBytes(encryptedRecord), record.revision, transactionType)
 }
@@ -974,7 +1608,7 @@ private fun prepareCreatePayload(
 ): CreatePayload {
     val clientId = storage.getString(KEY_CLIENT_ID) ?: throw Exception("Client Id is missing from the configuration")
     val ownerPublicKey = storage.getBytes(KEY_OWNER_PUBLIC_KEY) ?: throw Exception("Application owner public key is missing from the configuration")
-    val recordBytes = stringToBytes(Json.encodeToString(recordData))
+    val recordBytes = Json.encodeToBytes(recordData)
     val recordKey = getRandomBytes(32)
     val recordUid = generateUid()
     val encryptedRecord = encrypt(recordBytes, recordKey)
@@ -997,7 +1631,7 @@ private fun prepareCreateFolderPayload(
     sharedFolderKey: ByteArray
 ): CreateFolderPayload {
     val clientId = storage.getString(KEY_CLIENT_ID) ?: throw Exception("Client Id is missing from the configuration")
-    val folderDataBytes = stringToBytes(Json.encodeToString(KeeperFolderName(folderName)))
+    val folderDataBytes = Json.encodeToBytes(KeeperFolderName(folderName))
     val folderKey = getRandomBytes(32)
     val folderUid = generateUid()
     val encryptedFolderData = encrypt(folderDataBytes, folderKey, true)
@@ -1018,7 +1652,7 @@ private fun prepareUpdateFolderPayload(
     folderKey: ByteArray
 ): UpdateFolderPayload {
     val clientId = storage.getString(KEY_CLIENT_ID) ?: throw Exception("Client Id is missing from the configuration")
-    val folderDataBytes = stringToBytes(Json.encodeToString(KeeperFolderName(folderName)))
+    val folderDataBytes = Json.encodeToBytes(KeeperFolderName(folderName))
     val encryptedFolderData = encrypt(folderDataBytes, folderKey, true)
     return UpdateFolderPayload(KEEPER_CLIENT_VERSION, clientId,
         folderUid,
@@ -1029,26 +1663,33 @@ private fun prepareUpdateFolderPayload(
 private fun prepareFileUploadPayload(
     storage: KeyValueStorage,
     ownerRecord: KeeperRecord,
-    file: KeeperFileUpload
-): FileUploadPayloadAndFile {
+    name: String,
+    title: String,
+    type: String?,
+    size: Long
+): FileUploadPayloadAndKey {
+    // encrypted file is IV + data + tag, its size is sent as int
+    val encryptedFileSize = size + 28
+    if (size < 0 || encryptedFileSize > Int.MAX_VALUE) {
+        throw Exception("File size $size is not supported")
+    }
     val clientId = storage.getString(KEY_CLIENT_ID) ?: throw Exception("Client Id is missing from the configuration")
     val ownerPublicKey = storage.getBytes(KEY_OWNER_PUBLIC_KEY) ?: throw Exception("Application owner public key is missing from the configuration")
 
     val fileData = KeeperFileData(
-        file.title,
-        file.name,
-        file.type,
-        file.data.size.toLong(),
+        title,
+        name,
+        type,
+        size,
         Instant.now().toEpochMilli()
     )
 
-    val fileRecordBytes = stringToBytes(Json.encodeToString(fileData))
+    val fileRecordBytes = Json.encodeToBytes(fileData)
     val fileRecordKey = getRandomBytes(32)
     val fileRecordUid = webSafe64FromBytes(getRandomBytes(16))
     val encryptedFileRecord = encrypt(fileRecordBytes, fileRecordKey)
     val encryptedFileRecordKey = publicEncrypt(fileRecordKey, ownerPublicKey)
     val encryptedLinkKey = encrypt(fileRecordKey, ownerRecord.recordKey)
-    val encryptedFileData = encrypt(file.data, fileRecordKey)
 
     val fileRef = ownerRecord.data.getField<FileRef>()
     if (fileRef == null) {
@@ -1056,10 +1697,10 @@ private fun prepareFileUploadPayload(
     } else {
         fileRef.value.add(fileRecordUid)
     }
-    val ownerRecordBytes = stringToBytes(Json.encodeToString(ownerRecord.data))
+    val ownerRecordBytes = Json.encodeToBytes(ownerRecord.data)
     val encryptedOwnerRecord = encrypt(ownerRecordBytes, ownerRecord.recordKey)
 
-    return FileUploadPayloadAndFile(
+    return FileUploadPayloadAndKey(
         FileUploadPayload(KEEPER_CLIENT_VERSION, clientId,
             fileRecordUid,
             bytesToBase64(encryptedFileRecordKey),
@@ -1067,9 +1708,9 @@ private fun prepareFileUploadPayload(
             ownerRecord.recordUid,
             webSafe64FromBytes(encryptedOwnerRecord),
             bytesToBase64(encryptedLinkKey),
-            encryptedFileData.size
+            encryptedFileSize.toInt()
         ),
-        encryptedFileData
+        fileRecordKey
     )
 }
 
@@ -1077,7 +1718,8 @@ fun cachingPostFunction(url: String, transmissionKey: TransmissionKey, payload:
     return try {
         val response = postFunction(url, transmissionKey, payload, false)
         if (response.statusCode == HTTP_OK) {
-            saveCachedValue(transmissionKey.key + response.data)
+            // written to cache.dat in the background, see flushCachedValue
+            CachedValueWriter.default.submit(transmissionKey.key + response.data)
         }
         response
     } catch (e: Exception) {
@@ -1095,30 +1737,11 @@ fun postFunction(
     payload: EncryptedPayload,
     allowUnverifiedCertificate: Boolean
 ): KeeperHttpResponse {
-    var statusCode: Int
-    var data: ByteArray
-    with(URI.create(url).toURL().openConnection() as HttpsURLConnection) {
-        if (allowUnverifiedCertificate) {
-            sslSocketFactory = trustAllSocketFactory()
-        }
-        requestMethod = "POST"
-        doOutput = true
-        setRequestProperty("PublicKeyId", transmissionKey.publicKeyId.toString())
-        setRequestProperty("TransmissionKey", bytesToBase64(transmissionKey.encryptedKey))
-        setRequestProperty("Authorization", "Signature ${bytesToBase64(payload.signature)}")
-        outputStream.write(payload.payload)
-        outputStream.flush()
-        statusCode = responseCode
-        data = when {
-            errorStream != null -> errorStream.readBytes()
-            else -> inputStream.readBytes()
-        }
-    }
-    return KeeperHttpResponse(statusCode, data)
+    return HttpKeeperTransport.shared(allowUnverifiedCertificate).post(url, transmissionKey, payload)
 }
 
 @ExperimentalSerializationApi
-private val nonStrictJson = Json {
+internal val nonStrictJson = Json {
     ignoreUnknownKeys = true
     isLenient = true
     coerceInputValues = true
@@ -1142,27 +1765,29 @@ private val keeperPublicKeys = listOf(
     "BFX68cb97m9_sweGdOVavFM3j5ot6gveg6xT4BtGahfGhKib-zdZyO9pwvv1cBda9ahkSzo1BQ4NVXp9qRyqVGU"
 ).associateBy({ keyId++ }, { webSafe64ToBytes(it) })
 
-private fun generateTransmissionKey(storage: KeyValueStorage): TransmissionKey {
-    val transmissionKey = if (TestStubs.transmissionKeyStubReady()) {
-        TestStubs.transmissionKeyStub()
-    } else {
-        getRandomBytes(32)
-    }
-    val keyNumber: Int = storage.getString(KEY_SERVER_PUBIC_KEY_ID)?.toInt() ?: 7
+private fun generateTransmissionKey(options: SecretsManagerOptions): TransmissionKey {
+    val keyNumber: Int = options.storage.getString(KEY_SERVER_PUBIC_KEY_ID)?.toInt() ?: 7
     val keeperPublicKey = keeperPublicKeys[keyNumber] ?: throw Exception("Key number $keyNumber is not supported")
-    val encryptedKey = publicEncrypt(transmissionKey, keeperPublicKey)
-    return TransmissionKey(keyNumber, transmissionKey, encryptedKey)
+    val serverPublicKey = options.cryptoContext.serverPublicKey(keyNumber, keeperPublicKey)
+    if (TestStubs.transmissionKeyStubReady()) {
+        val transmissionKey = TestStubs.transmissionKeyStub()
+        return TransmissionKey(keyNumber, transmissionKey, publicEncrypt(transmissionKey, serverPublicKey))
+    }
+    if (options.transmissionKeyPoolSize > 0) {
+        return options.cryptoContext.transmissionKeys.take(keyNumber, keeperPublicKey, serverPublicKey, options.transmissionKeyPoolSize)
+    }
+    return createTransmissionKey(keyNumber, serverPublicKey)
 }
 
 @ExperimentalSerializationApi
 private inline fun <reified T> encryptAndSignPayload(
-    storage: KeyValueStorage,
+    options: SecretsManagerOptions,
     transmissionKey: TransmissionKey,
     payload: T
 ): EncryptedPayload {
-    val payloadBytes = stringToBytes(Json.encodeToString(payload))
+    val payloadBytes = Json.encodeToBytes(payload)
     val encryptedPayload = encrypt(payloadBytes, transmissionKey.key)
-    val privateKey = storage.getBytes(KEY_PRIVATE_KEY) ?: throw Exception("Private key is missing from the storage")
+    val privateKey = options.cryptoContext.privateKey(options.storage)
     val signatureBase = transmissionKey.encryptedKey + encryptedPayload
     val signature = sign(signatureBase, privateKey)
     return EncryptedPayload(encryptedPayload, signature)
@@ -1172,30 +1797,36 @@ private inline fun <reified T> encryptAndSignPayload(
 private inline fun <reified T> postQuery(
     options: SecretsManagerOptions,
     path: String,
-    payload: T
+    payload: T,
+    rateLimiter: ClientRateLimiter? = rateLimiterOf(options)
 ): ByteArray {
     val hostName = options.storage.getString(KEY_HOSTNAME) ?: throw Exception("hostname is missing from the storage")
     val url = "https://${hostName}/api/rest/sm/v1/${path}"
+    var throttledAttempts = 0
     while (true) {
-        val transmissionKey = generateTransmissionKey(options.storage)
-        val encryptedPayload = encryptAndSignPayload(options.storage, transmissionKey, payload)
-        val response = if (options.queryFunction == null) {
-            postFunction(url, transmissionKey, encryptedPayload, options.allowUnverifiedCertificate)
-        } else {
-            options.queryFunction.invoke(url, transmissionKey, encryptedPayload)
-        }
+        val transmissionKey = generateTransmissionKey(options)
+        val encryptedPayload = encryptAndSignPayload(options, transmissionKey, payload)
+        rateLimiter?.acquire(path)
+        val response = options.resolvedTransport.post(url, transmissionKey, encryptedPayload)
         if (response.statusCode != HTTP_OK) {
             val errorMessage = String(response.data)
-            try {
-                val error = nonStrictJson.decodeFromString<KeeperError>(errorMessage)
-                if (error.error == "key") {
-                    options.storage.saveString(KEY_SERVER_PUBIC_KEY_ID, error.key_id.toString())
+            val error = try {
+                nonStrictJson.decodeFromString<KeeperError>(errorMessage)
+            } catch (_: Exception) {
+                null
+            }
+            if (error?.error == "key") {
+                options.storage.saveString(KEY_SERVER_PUBIC_KEY_ID, error.key_id.toString())
+                continue
+            }
+            if (rateLimiter != null && (error?.error == "throttled" || response.statusCode == HTTP_TOO_MANY_REQUESTS)) {
+                if (rateLimiter.onThrottled(path, throttledAttempts++)) {
                     continue
                 }
-            } catch (_: Exception) {
             }
             throw Exception(errorMessage)
         }
+        rateLimiter?.onSuccess(path)
         if (response.data.isEmpty()) {
             return response.data
         }
@@ -1203,7 +1834,13 @@ private inline fun <reified T> postQuery(
     }
 }
 
-private fun trustAllSocketFactory(): SSLSocketFactory {
+private fun rateLimiterOf(options: SecretsManagerOptions): ClientRateLimiter? {
+    val rateLimit = options.rateLimit ?: return null
+    val clientId = options.storage.getString(KEY_CLIENT_ID) ?: options.storage.getString(KEY_HOSTNAME) ?: ""
+    return rateLimiterFor(clientId, rateLimit)
+}
+
+internal fun trustAllSocketFactory(): SSLSocketFactory {
     val trustAllCerts: Array<TrustManager> = arrayOf(
         object : X509TrustManager {
             private val AcceptedIssuers = arrayOf<X509Certificate>()
@@ -0,0 +1,109 @@
+@file:JvmName("SecretsManagerAsync")
+
+package com.keepersecurity.secretsManager.core
+
+import kotlinx.serialization.ExperimentalSerializationApi
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.atomic.AtomicInteger
+
+// Asynchronous counterparts of the SecretsManager functions.
+// Network calls run on SecretsManagerOptions.executor (a shared daemon thread pool by default)
+// so the calling thread is never blocked, decryption of the fetched records runs on the common ForkJoin pool.
+
+private val threadCounter = AtomicInteger()
+
+private val defaultExecutor: ExecutorService by lazy {
+    Executors.newCachedThreadPool { runnable ->
+        val thread = Thread(runnable, "keeper-secrets-manager-${threadCounter.incrementAndGet()}")
+        thread.isDaemon = true
+        thread
+    }
+}
+
+internal val SecretsManagerOptions.asyncExecutor: Executor
+    get() = executor ?: defaultExecutor
+
+private val computeExecutor: Executor
+    get() = ForkJoinPool.commonPool()
+
+@ExperimentalSerializationApi
+@JvmOverloads
+fun getSecretsAsync(options: SecretsManagerOptions, recordsFilter: List<String> = emptyList()): CompletableFuture<KeeperSecrets> {
+    return getSecrets2Async(options, QueryOptions(recordsFilter))
+}
+
+@ExperimentalSerializationApi
+@JvmOverloads
+fun getSecrets2Async(options: SecretsManagerOptions, queryOptions: QueryOptions? = null): CompletableFuture<KeeperSecrets> {
+    return coalesceSecretsRequest(options, queryOptions) { fetchAndDecryptSecretsAsync(options, queryOptions) }
+}
+
+@ExperimentalSerializationApi
+private fun fetchAndDecryptSecretsAsync(options: SecretsManagerOptions, queryOptions: QueryOptions?): CompletableFuture<KeeperSecrets> {
+    return CompletableFuture
+        .supplyAsync({ fetchSecrets(options, queryOptions) }, options.asyncExecutor)
+        .thenApplyAsync({ decryptSecrets(options, it) }, computeExecutor)
+        .thenCompose { (secrets, justBound) ->
+            if (!justBound) {
+                CompletableFuture.completedFuture(secrets)
+            } else {
+                // same as getSecrets2 - confirm the binding with a second call, errors are only logged
+                CompletableFuture.supplyAsync({
+                    try {
+                        decryptSecrets(options, fetchSecrets(options, queryOptions))
+                    } catch (e: Exception) {
+                        println(e)
+                    }
+                    secrets
+                }, options.asyncExecutor)
+            }
+        }
+}
+
+@ExperimentalSerializationApi
+fun getFoldersAsync(options: SecretsManagerOptions): CompletableFuture<List<KeeperFolder>> {
+    return CompletableFuture.supplyAsync({ getFolders(options) }, options.asyncExecutor)
+}
+
+@ExperimentalSerializationApi
+@JvmOverloads
+fun updateSecretAsync(options: SecretsManagerOptions, record: KeeperRecord, transactionType: UpdateTransactionType? = null): CompletableFuture<Void> {
+    return CompletableFuture.runAsync({ updateSecret(options, record, transactionType) }, options.asyncExecutor)
+}
+
+@ExperimentalSerializationApi
+@JvmOverloads
+fun createSecret2Async(
+    options: SecretsManagerOptions,
+    createOptions: CreateOptions,
+    recordData: KeeperRecordData,
+    folders: List<KeeperFolder>? = null
+): CompletableFuture<String> {
+    return CompletableFuture.supplyAsync({
+        createSecret2(options, createOptions, recordData, folders ?: getFolders(options))
+    }, options.asyncExecutor)
+}
+
+@ExperimentalSerializationApi
+fun uploadFileAsync(options: SecretsManagerOptions, ownerRecord: KeeperRecord, file: KeeperFileUpload): CompletableFuture<String> {
+    return CompletableFuture.supplyAsync({ uploadFile(options, ownerRecord, file) }, options.asyncExecutor)
+}
+
+@ExperimentalSerializationApi
+fun uploadFileAsync(options: SecretsManagerOptions, ownerRecord: KeeperRecord, file: KeeperFileUploadStream): CompletableFuture<String> {
+    return CompletableFuture.supplyAsync({ uploadFile(options, ownerRecord, file) }, options.asyncExecutor)
+}
+
+@JvmOverloads
+fun downloadFileAsync(file: KeeperFile, executor: Executor? = null): CompletableFuture<ByteArray> {
+    return CompletableFuture.supplyAsync({ downloadFile(file) }, executor ?: defaultExecutor)
+}
+
+@ExperimentalSerializationApi
+fun getNotationResultsAsync(options: SecretsManagerOptions, notation: String): CompletableFuture<List<String>> {
+    return CompletableFuture.supplyAsync({ getNotationResults(options, notation) }, options.asyncExecutor)
+}
@@ -0,0 +1,89 @@
+package com.keepersecurity.secretsManager.core
+
+import java.security.PublicKey
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+
+internal fun createTransmissionKey(keyId: Int, serverPublicKey: PublicKey): TransmissionKey {
+    val key = getRandomBytes(32)
+    return TransmissionKey(keyId, key, publicEncrypt(key, serverPublicKey))
+}
+
+// Transmission keys pre-computed on a low priority background thread, see SecretsManagerOptions.transmissionKeyPoolSize.
+// Each KeeperCryptoContext owns a pool. It holds keys for a single server key - id and key bytes - and is dropped
+// when a request asks for another one (the server rotated its key).
+// Every key is handed out once, an empty pool falls back to generating the key on the calling thread.
+internal class TransmissionKeyPool {
+
+    private class Keys(val keyId: Int, val rawKey: ByteArray, val serverPublicKey: PublicKey, capacity: Int) {
+        val queue = ArrayBlockingQueue<TransmissionKey>(capacity)
+
+        fun isFor(keyId: Int, rawKey: ByteArray) = this.keyId == keyId && this.rawKey.contentEquals(rawKey)
+    }
+
+    private val current = AtomicReference<Keys?>()
+    private val refilling = AtomicBoolean(false)
+
+    fun take(keyId: Int, rawKey: ByteArray, serverPublicKey: PublicKey, capacity: Int): TransmissionKey {
+        val keys = keysFor(keyId, rawKey, serverPublicKey, capacity)
+        val key = keys.queue.poll()
+        refill()
+        return key ?: createTransmissionKey(keyId, serverPublicKey)
+    }
+
+    private fun keysFor(keyId: Int, rawKey: ByteArray, serverPublicKey: PublicKey, capacity: Int): Keys {
+        while (true) {
+            val keys = current.get()
+            if (keys != null && keys.isFor(keyId, rawKey) && keys.queue.remainingCapacity() + keys.queue.size >= capacity) {
+                return keys
+            }
+            val retainedCapacity = if (keys != null && keys.isFor(keyId, rawKey)) keys.queue.size + keys.queue.remainingCapacity() else 0
+            val replacement = Keys(keyId, rawKey, serverPublicKey, maxOf(capacity, retainedCapacity))
+            if (current.compareAndSet(keys, replacement)) {
+                return replacement
+            }
+        }
+    }
+
+    private fun refill() {
+        if (!refilling.compareAndSet(false, true)) {
+            return
+        }
+        try {
+            refillExecutor.execute {
+                try {
+                    while (true) {
+                        val keys = current.get() ?: break
+                        if (keys.queue.remainingCapacity() == 0) {
+                            break
+                        }
+                        // a pool replaced in the meantime is garbage, the next iteration fills the new one
+                        keys.queue.offer(createTransmissionKey(keys.keyId, keys.serverPublicKey))
+                    }
+                } catch (e: Exception) {
+                    println("Pre-computing transmission keys failed: ${e.message}")
+                } finally {
+                    refilling.set(false)
+                }
+            }
+        } catch (e: Exception) {
+            refilling.set(false)
+            throw e
+        }
+    }
+
+    private companion object {
+        // one background thread fills the pools of all contexts
+        val refillExecutor: ExecutorService by lazy {
+            Executors.newSingleThreadExecutor { runnable ->
+                val thread = Thread(runnable, "keeper-transmission-keys")
+                thread.isDaemon = true
+                thread.priority = Thread.MIN_PRIORITY
+                thread
+            }
+        }
+    }
+}
@@ -22,6 +22,100 @@ internal class CryptoUtilsTest {
         assertContentEquals(data, plaintext)
     }
 
+    @Test
+    fun perThreadRandomSource() {
+        val source = DrbgRandomSource(perThread = true)
+        val mainRandom = source.get()
+        assertSame(mainRandom, source.get())
+        var otherRandom: java.security.SecureRandom? = null
+        val thread = Thread { otherRandom = source.get() }
+        thread.start()
+        thread.join()
+        assertNotNull(otherRandom)
+        assertNotSame(mainRandom, otherRandom)
+    }
+
+    @Test
+    fun transmissionKeyPoolHandsOutDistinctKeys() {
+        val pool = TransmissionKeyPool()
+        val keyPair = generateKeyPair()
+        val rawKey = extractPublicRaw(keyPair.public)
+        val first = pool.take(1, rawKey, keyPair.public, 4)
+        val second = pool.take(1, rawKey, keyPair.public, 4)
+        assertFalse(first.key.contentEquals(second.key))
+        assertContentEquals(second.key, privateDecrypt(second.encryptedKey, keyPair.private.encoded))
+
+        // a new server key under the same id drops the keys computed for the old one
+        val otherKeyPair = generateKeyPair()
+        val rotated = pool.take(1, extractPublicRaw(otherKeyPair.public), otherKeyPair.public, 4)
+        assertEquals(1, rotated.publicKeyId)
+        assertContentEquals(rotated.key, privateDecrypt(rotated.encryptedKey, otherKeyPair.private.encoded))
+    }
+
+    @Test
+    fun gcmStreamsMatchEncryptAndDecrypt() {
+        val key = getRandomBytes(32)
+        for (size in listOf(0, 1, 15, 16, 17, 100_003)) {
+            val data = getRandomBytes(size)
+            val encrypted = encrypt(data, key)
+            // small uneven reads exercise the partial block handling
+            val input = object : java.io.FilterInputStream(java.io.ByteArrayInputStream(encrypted)) {
+                override fun read(b: ByteArray, off: Int, len: Int) = super.read(b, off, minOf(len, 7))
+            }
+            val output = java.io.ByteArrayOutputStream()
+            decryptStream(input, key, output)
+            assertContentEquals(data, output.toByteArray())
+        }
+
+        val plain = getRandomBytes(200_000)
+        val streamed = java.io.ByteArrayOutputStream()
+        encryptStream(java.io.ByteArrayInputStream(plain), plain.size.toLong(), key, streamed)
+        assertContentEquals(plain, decrypt(streamed.toByteArray(), key))
+        assertFailsWith<Exception> {
+            encryptStream(java.io.ByteArrayInputStream(plain), plain.size + 1L, key, java.io.ByteArrayOutputStream())
+        }
+
+        val encrypted = encrypt(getRandomBytes(1000), key)
+        encrypted[500] = (encrypted[500].toInt() xor 1).toByte()
+        assertFailsWith<Exception> {
+            decryptStream(java.io.ByteArrayInputStream(encrypted), key, java.io.ByteArrayOutputStream())
+        }
+    }
+
+    @Test
+    fun gcmStreamMatchesNistVectors() {
+        // AES-GCM test cases 1, 2, 3, 13, 14 and 15 of the GCM specification (NIST SP 800-38D), no additional data
+        val vectors = listOf(
+            listOf("00000000000000000000000000000000", "000000000000000000000000", "", "", "58e2fccefa7e3061367f1d57a4e7455a"),
+            listOf("00000000000000000000000000000000", "000000000000000000000000", "00000000000000000000000000000000",
+                "0388dace60b6a392f328c2b971b2fe78", "ab6e47d42cec13bdf53a67b21257bddf"),
+            listOf("feffe9928665731c6d6a8f9467308308", "cafebabefacedbaddecaf888",
+                "d9313225f88406e5a55909c5aff5269a86a7a9531534f7da2e4c303d8a318a721c3c0c95956809532fcf0e2449a6b525b16aedf5aa0de657ba637b391aafd255",
+                "42831ec2217774244b7221b784d0d49ce3aa212f2c02a4e035c17e2329aca12e21d514b25466931c7d8f6a5aac84aa051ba30b396a0aac973d58e091473f5985",
+                "4d5c2af327cd64a62cf35abd2ba6fab4"),
+            listOf("0000000000000000000000000000000000000000000000000000000000000000", "000000000000000000000000", "", "",
+                "530f8afbc74536b9a963b4f1c4cb738b"),
+            listOf("0000000000000000000000000000000000000000000000000000000000000000", "000000000000000000000000",
+                "00000000000000000000000000000000", "cea7403d4d606b6e074ec5d3baf39d18", "d0d1c8a799996bf0265b98b5d48ab919"),
+            listOf("feffe9928665731c6d6a8f9467308308feffe9928665731c6d6a8f9467308308", "cafebabefacedbaddecaf888",
+                "d9313225f88406e5a55909c5aff5269a86a7a9531534f7da2e4c303d8a318a721c3c0c95956809532fcf0e2449a6b525b16aedf5aa0de657ba637b391aafd255",
+                "522dc1f099567d07f47f37a32a84427d643a8cdcbfe5c0c97598a2bd2555d1aa8cb08e48590dbb3da7b08b1056828838c5f61e6393ba7a0abcc9f662898015ad",
+                "b094dac5d93471bdec1a502270e3cc6c")
+        )
+        fun hex(value: String) = ByteArray(value.length / 2) { value.substring(it * 2, it * 2 + 2).toInt(16).toByte() }
+        for ((key, iv, plaintext, ciphertext, tag) in vectors) {
+            val encrypted = hex(iv) + hex(ciphertext) + hex(tag)
+            val output = java.io.ByteArrayOutputStream()
+            decryptStream(java.io.ByteArrayInputStream(encrypted), hex(key), output)
+            assertContentEquals(hex(plaintext), output.toByteArray())
+
+            encrypted[encrypted.size - 1] = (encrypted[encrypted.size - 1].toInt() xor 1).toByte()
+            assertFailsWith<Exception> {
+                decryptStream(java.io.ByteArrayInputStream(encrypted), hex(key), java.io.ByteArrayOutputStream())
+            }
+        }
+    }
+
     @Test
     fun testTotp() {
         // test default algorithm
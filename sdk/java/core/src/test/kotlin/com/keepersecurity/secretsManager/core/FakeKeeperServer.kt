@@ -0,0 +1,92 @@
+package com.keepersecurity.secretsManager.core
+
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.jsonArray
+import kotlinx.serialization.json.jsonPrimitive
+import java.util.concurrent.ConcurrentLinkedQueue
+
+// Records every call by path and answers it with `respond`, or when that returns null passes it on to `target`
+// (an empty success without one)
+internal open class RecordingTransport(private val target: KeeperTransport? = null) : KeeperTransport {
+
+    // paths of the calls received, in order
+    val requests = ConcurrentLinkedQueue<String>()
+
+    // answers a call instead of the default response, null - use the default
+    @Volatile
+    var respond: (path: String, payload: JsonObject) -> KeeperHttpResponse? = { _, _ -> null }
+
+    fun count(path: String): Int = requests.count { it == path }
+
+    override fun post(url: String, transmissionKey: TransmissionKey, payload: EncryptedPayload): KeeperHttpResponse {
+        val path = url.substringAfterLast('/')
+        requests.add(path)
+        val request = Json.parseToJsonElement(decrypt(payload.payload, transmissionKey.key)) as JsonObject
+        return respond(path, request) ?: answer(url, path, request, transmissionKey, payload)
+    }
+
+    protected open fun answer(
+        url: String,
+        path: String,
+        request: JsonObject,
+        transmissionKey: TransmissionKey,
+        payload: EncryptedPayload
+    ): KeeperHttpResponse {
+        return target?.post(url, transmissionKey, payload) ?: KeeperHttpResponse(200, ByteArray(0))
+    }
+}
+
+// Stands in for the Secrets Manager endpoint of a bound application. get_secret returns the given records
+// (only the requested ones for a filtered call), any other call an empty success unless `respond` answers it.
+@ExperimentalSerializationApi
+internal class FakeKeeperServer(records: Map<String, KeeperRecordData> = emptyMap()) : RecordingTransport() {
+
+    private val appKey = getRandomBytes(32)
+    private val responseRecords = records.map { (recordUid, data) ->
+        val recordKey = getRandomBytes(32)
+        SecretsManagerResponseRecord(
+            recordUid,
+            bytesToBase64(encrypt(recordKey, appKey)),
+            bytesToBase64(encrypt(Json.encodeToBytes(data), recordKey)),
+            1,
+            true,
+            null,
+            null
+        )
+    }
+
+    init {
+        // the fake data tests leave a stub that replays their keys
+        TestStubs.transmissionKeyStub = { getRandomBytes(32) }
+    }
+
+    fun options(): SecretsManagerOptions {
+        val storage = LocalConfigStorage()
+        storage.saveString(KEY_HOSTNAME, "fake.keepersecurity.com")
+        storage.saveString(KEY_CLIENT_ID, bytesToBase64(getRandomBytes(32)))
+        storage.saveBytes(KEY_PRIVATE_KEY, generateKeyPair().private.encoded)
+        storage.saveBytes(KEY_APP_KEY, appKey)
+        return SecretsManagerOptions(storage, transport = this)
+    }
+
+    override fun answer(
+        url: String,
+        path: String,
+        request: JsonObject,
+        transmissionKey: TransmissionKey,
+        payload: EncryptedPayload
+    ): KeeperHttpResponse {
+        if (path != "get_secret") {
+            return super.answer(url, path, request, transmissionKey, payload)
+        }
+        val requested = request["requestedRecords"]?.jsonArray?.map { it.jsonPrimitive.content }?.toSet()
+        val response = SecretsManagerResponse(
+            encryptedAppKey = null,
+            folders = null,
+            records = responseRecords.filter { requested == null || it.recordUid in requested }
+        )
+        return KeeperHttpResponse(200, encrypt(Json.encodeToBytes(response), transmissionKey.key))
+    }
+}
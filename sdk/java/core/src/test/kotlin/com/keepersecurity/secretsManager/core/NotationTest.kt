@@ -1,6 +1,9 @@
 package com.keepersecurity.secretsManager.core
 
 import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.jsonObject
+import kotlinx.serialization.json.jsonPrimitive
 import kotlin.test.Test
 import kotlin.test.assertEquals
 import kotlin.test.fail
@@ -101,6 +104,46 @@ internal class NotationTest {
         assertEquals("QR Code File Url", file.url)
     }
 
+    @Test
+    fun fieldTypeMatchesSerialName() {
+        val fields = recordData.fields + recordData.custom!! + listOf(
+            HiddenField(value = listOf("secret")), OneTimePassword(value = mutableListOf("otpauth://")),
+            IsSsidHidden(value = mutableListOf(true)), PamHostnames(value = mutableListOf(Host("host", "22")))
+        )
+        for (field in fields) {
+            val json = Json.encodeToJsonElement(KeeperRecordField.serializer(), field).jsonObject
+            assertEquals(json["type"]!!.jsonPrimitive.content, fieldType(field))
+        }
+        assertEquals("22", getValue(secrets, "keeper://${recordUID}/custom_field/phone[0][ext]"))
+        assertEquals("null", getValueProperty(Phone(number = "555"), "region"))
+    }
+
+    private fun loginRecord(title: String, password: String) =
+        KeeperRecordData(title, "login", mutableListOf(Password(value = mutableListOf(password))))
+
+    @Test
+    fun resolverFetchesAllUidsInOneCall() {
+        val uids = listOf("AAAAAAAAAAAAAAAAAAAAAA", "BBBBBBBBBBBBBBBBBBBBBB", "CCCCCCCCCCCCCCCCCCCCCC")
+        val server = FakeKeeperServer(uids.mapIndexed { i, uid -> uid to loginRecord("Record $i", "password$i") }.toMap())
+        val notations = uids.map { "keeper://$it/field/password" } + "${uids[0]}/type"
+        val values = NotationResolver(server.options()).resolve(notations)
+        uids.forEachIndexed { i, uid -> assertEquals(listOf("password$i"), values["keeper://$uid/field/password"]) }
+        assertEquals(listOf("login"), values["${uids[0]}/type"])
+        assertEquals(listOf("get_secret"), server.requests.toList())
+    }
+
+    @Test
+    fun resolverLooksUpTitlesInOneSharedCall() {
+        val uid = "AAAAAAAAAAAAAAAAAAAAAA"
+        val server = FakeKeeperServer(mapOf(uid to loginRecord("First", "one"), "BBBBBBBBBBBBBBBBBBBBBB" to loginRecord("Second", "two")))
+        val values = NotationResolver(server.options()).resolve(listOf("First/field/password", "Second/field/password", "$uid/title"))
+        assertEquals(listOf("one"), values["First/field/password"])
+        assertEquals(listOf("two"), values["Second/field/password"])
+        assertEquals(listOf("First"), values["$uid/title"])
+        // the filtered call for the UID and one unfiltered call shared by both titles
+        assertEquals(2, server.count("get_secret"))
+    }
+
     @Test
     fun notationParserWork() {
         try {
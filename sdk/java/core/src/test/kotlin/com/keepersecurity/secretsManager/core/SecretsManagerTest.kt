@@ -3,14 +3,23 @@ package com.keepersecurity.secretsManager.core
 import kotlinx.serialization.ExperimentalSerializationApi
 import kotlinx.serialization.Serializable
 import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.*
 import org.bouncycastle.jcajce.provider.BouncyCastleFipsProvider
 //import org.bouncycastle.jce.provider.BouncyCastleProvider
 import java.io.BufferedReader
+import java.io.ByteArrayInputStream
 import java.io.File
 import java.io.FileInputStream
 import java.io.FileReader
+import java.io.InputStream
+import java.net.ConnectException
+import java.nio.file.Files
 import java.security.Security
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.test.*
 
 @ExperimentalSerializationApi
@@ -19,9 +28,7 @@ internal class SecretsManagerTest {
     @Serializable
     data class TestResponse(val transmissionKey: String, val data: String, val statusCode: Int)
 
-    @ExperimentalSerializationApi
-    @Test
-    fun getSecretsE2E() {
+    private fun fakeDataOptions(): SecretsManagerOptions {
         val file = File("../../fake_data.json")
 
         assertTrue(file.exists())
@@ -44,7 +51,13 @@ internal class SecretsManagerTest {
         val fakeOneTimeCode = "YyIhK5wXFHj36wGBAOmBsxI3v5rIruINrC8KXjyM58c"
 
         initializeStorage(storage, fakeOneTimeCode, "fake.keepersecurity.com")
-        val options = SecretsManagerOptions(storage, testPostFunction)
+        return SecretsManagerOptions(storage, testPostFunction)
+    }
+
+    @ExperimentalSerializationApi
+    @Test
+    fun getSecretsE2E() {
+        val options = fakeDataOptions()
         val secrets = getSecrets(options)
         assertTrue(secrets.records.size == 2)
         val record = secrets.getRecordByUid("Ue8h6JyWUs7Iu6eY_mha-w")
@@ -52,6 +65,9 @@ internal class SecretsManagerTest {
         val password = record.getPassword()
         assertNotNull(password)
         assertEquals("EwFpmg);7KsO9+ln8g7", password)
+        assertSame(record, secrets.getSecretByTitle(record.getTitle()))
+        assertTrue(secrets.getSecretsByType(record.getType()).contains(record))
+        assertTrue(secrets.getSecretsByTitle("No Such Title").isEmpty())
 
         record.updatePassword("NewPassword1")
         val passwordNew1 = record.getPassword()
@@ -77,6 +93,456 @@ internal class SecretsManagerTest {
         }
     }
 
+    @Test
+    fun getSecretsAsyncE2E() {
+        val options = fakeDataOptions()
+        val secrets = getSecretsAsync(options).get()
+        assertEquals(2, secrets.records.size)
+        assertEquals("EwFpmg);7KsO9+ln8g7", secrets.getRecordByUid("Ue8h6JyWUs7Iu6eY_mha-w")?.getPassword())
+    }
+
+    @Test
+    fun coalescedRequestsShareOneRoundTrip() {
+        val options = fakeDataOptions()
+        val callers = 8
+
+        // every caller is started, the first request blocks in the transport until all others wait for its result
+        fun callConcurrently(respond: () -> KeeperHttpResponse?): Pair<Int, List<Any>> {
+            val release = CountDownLatch(1)
+            val transport = RecordingTransport(options.resolvedTransport)
+            transport.respond = { _, _ ->
+                release.await()
+                respond()
+            }
+            val coalescing = options.copy(transport = transport, coalesceRequests = true)
+            val results = arrayOfNulls<Any>(callers)
+            val threads = (0 until callers).map { i ->
+                Thread {
+                    results[i] = try {
+                        getSecrets2(coalescing)
+                    } catch (e: Exception) {
+                        e
+                    }
+                }
+            }
+            threads.forEach { it.start() }
+            val deadline = System.currentTimeMillis() + 10_000
+            while (threads.any { it.state != Thread.State.WAITING } && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10)
+            }
+            release.countDown()
+            threads.forEach { it.join() }
+            return Pair(transport.requests.size, results.map { it!! })
+        }
+
+        // the fake data binds the application, so a single getSecrets call is the request and its confirmation
+        val (posts, secrets) = callConcurrently { null }
+        assertEquals(2, posts)
+        assertTrue(secrets[0] is KeeperSecrets)
+        secrets.forEach { assertSame(secrets[0], it) }
+
+        val (failedPosts, errors) = callConcurrently {
+            KeeperHttpResponse(400, stringToBytes("{\"error\":\"access_denied\",\"message\":\"No access\"}"))
+        }
+        assertEquals(1, failedPosts)
+        assertTrue(errors[0] is Exception)
+        errors.forEach { assertSame(errors[0], it) }
+    }
+
+    @Test
+    fun getSecretsParallelDecryptE2E() {
+        val sequential = getSecrets(fakeDataOptions())
+        val parallel = getSecrets(fakeDataOptions().copy(parallelDecryptThreshold = 1))
+        assertEquals(sequential.records.map { it.recordUid }, parallel.records.map { it.recordUid })
+    }
+
+    @Test
+    fun getSecretsLazyDecryptE2E() {
+        val secrets = getSecrets(fakeDataOptions().copy(lazyDecrypt = true))
+        assertEquals(2, secrets.records.size)
+        val record = secrets.getRecordByUid("Ue8h6JyWUs7Iu6eY_mha-w")
+        assertNotNull(record)
+        assertEquals("EwFpmg);7KsO9+ln8g7", record.getPassword())
+        assertSame(record, secrets.getSecretByTitle(record.getTitle()))
+        assertNull(secrets.getRecordByUid("NoSuchRecordUid"))
+    }
+
+    @Test
+    fun lazyDecryptSkipsUndecodableRecords() {
+        val appKey = getRandomBytes(32)
+        fun responseRecord(recordUid: String, json: String): SecretsManagerResponseRecord {
+            val recordKey = getRandomBytes(32)
+            val data = encrypt(stringToBytes(json), recordKey)
+            return SecretsManagerResponseRecord(recordUid, bytesToBase64(encrypt(recordKey, appKey)), bytesToBase64(data), 1, true, null, null)
+        }
+        val response = SecretsManagerResponse(null, null, null, null, listOf(
+            responseRecord("record1", """{"title":"First","type":"login","fields":[]}"""),
+            responseRecord("broken", "not a record"),
+            responseRecord("record2", """{"title":"Second","type":"login","fields":[]}""")
+        ))
+        val options = SecretsManagerOptions(LocalConfigStorage())
+        options.storage.saveBytes(KEY_APP_KEY, appKey)
+
+        val eager = decryptSecrets(options, response).first
+        val lazy = decryptSecrets(options.copy(lazyDecrypt = true), response).first
+        // positional access and entryCount decrypt no further than needed
+        assertEquals(3, lazy.entryCount)
+        assertEquals("record1", lazy.records[0].recordUid)
+        assertNull(lazy.decodedRecord("record2"))
+        assertEquals(listOf("record1", "record2"), eager.records.map { it.recordUid })
+        assertEquals(eager.records.map { it.recordUid }, lazy.records.map { it.recordUid })
+        assertNull(lazy.getRecordByUid("broken"))
+        assertEquals("record2", lazy.getSecretByTitle("Second")?.recordUid)
+        assertEquals(2, lazy.getSecretsByType("login").size)
+        assertEquals(2, lazy.records.size)
+        assertEquals("record2", lazy.records[1].recordUid)
+        assertFailsWith<IndexOutOfBoundsException> { lazy.records[2] }
+    }
+
+    @Test
+    fun syncSecretsReusesUnchangedRecords() {
+        val first = syncSecrets(fakeDataOptions(), null)
+        assertEquals(2, first.added.size)
+        assertTrue(first.changed.isEmpty() && first.removed.isEmpty())
+
+        val second = syncSecrets(fakeDataOptions(), first.secrets)
+        assertTrue(second.added.isEmpty() && second.changed.isEmpty() && second.removed.isEmpty())
+        first.secrets.records.forEach { assertSame(it, second.secrets.getRecordByUid(it.recordUid)) }
+
+        // a record edited locally is decoded again, the vault version replaces the edit
+        val edited = second.secrets.records[0]
+        val title = edited.data.title
+        edited.data.title = "unsaved edit"
+        val third = syncSecrets(fakeDataOptions(), second.secrets)
+        assertNotSame(edited, third.secrets.getRecordByUid(edited.recordUid))
+        assertEquals(title, third.secrets.getRecordByUid(edited.recordUid)?.data?.title)
+        assertSame(second.secrets.records[1], third.secrets.getRecordByUid(second.secrets.records[1].recordUid))
+    }
+
+    @Test
+    fun throttledRequestIsRetried() {
+        val options = fakeDataOptions()
+        val transport = RecordingTransport(options.resolvedTransport)
+        transport.respond = { _, _ -> if (transport.requests.size == 1) throttledResponse() else null }
+        val rateLimit = RateLimitOptions(initialBackoffMillis = 10, maxBackoffMillis = 20)
+        val secrets = getSecrets(options.copy(transport = transport, rateLimit = rateLimit))
+        assertEquals(2, secrets.records.size)
+        assertEquals(3, transport.requests.size)
+    }
+
+    private fun throttledResponse() =
+        KeeperHttpResponse(403, stringToBytes("{\"error\":\"throttled\",\"message\":\"Too many requests\"}"))
+
+    @Test
+    fun rateLimiterIsSharedPerClient() {
+        val options = RateLimitOptions(requestsPerSecond = 1.0, endpointRequestsPerSecond = mapOf("get_secret" to 2.0))
+        val limiter = rateLimiterFor("client1", options)
+        assertSame(limiter, rateLimiterFor("client1", options.copy()))
+        // other options of the same client tighten the shared limiter, looser ones leave it as it is
+        assertSame(limiter, rateLimiterFor("client1", RateLimitOptions(requestsPerSecond = 0.5, maxRetries = 2)))
+        assertSame(limiter, rateLimiterFor("client1", RateLimitOptions(requestsPerSecond = 50.0, burst = 3)))
+        assertEquals(0.5, limiter.options.requestsPerSecond)
+        assertEquals(0.5, limiter.options.rateOf("get_secret"))
+        assertEquals(3, limiter.options.burst)
+        assertEquals(5, limiter.options.maxRetries)
+        assertNotSame(limiter, rateLimiterFor("client2", options))
+    }
+
+    @Test
+    fun optionsBuilderSharesCryptoContext() {
+        warmUp()
+        val fakeOptions = fakeDataOptions()
+        val builder = SecretsManagerOptions.Builder(fakeOptions.storage).queryFunction(fakeOptions.queryFunction)
+        val options = builder.build()
+        assertSame(options.cryptoContext, builder.build().cryptoContext)
+        assertSame(options.cryptoContext, options.copy(lazyDecrypt = true).cryptoContext)
+        assertEquals(2, getSecrets(options).records.size)
+    }
+
+    @Test
+    fun transportWaitsForFreeConnectionLongerThanConnectTimeout() {
+        val transport = HttpKeeperTransport(HttpTransportOptions(connectTimeoutMillis = 50, maxConnectionsPerHost = 1))
+        val active = AtomicInteger()
+        val maxActive = AtomicInteger()
+        val errors = ConcurrentLinkedQueue<Exception>()
+        // transfers hold the connection slot far longer than the connect timeout
+        val threads = (1..3).map {
+            Thread {
+                try {
+                    transport.execute("https://files.example.com/file") {
+                        maxActive.accumulateAndGet(active.incrementAndGet(), ::maxOf)
+                        Thread.sleep(200)
+                        active.decrementAndGet()
+                    }
+                } catch (e: Exception) {
+                    errors.add(e)
+                }
+            }
+        }
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+        assertTrue(errors.isEmpty(), errors.joinToString())
+        assertEquals(1, maxActive.get())
+
+        // the wait is bounded by default, bulk downloads opt into waiting as long as it takes
+        val bounded = HttpKeeperTransport(HttpTransportOptions(maxConnectionsPerHost = 1, acquireTimeoutMillis = 50))
+        val holder = Thread { bounded.execute("https://files.example.com/file") { Thread.sleep(300) } }
+        holder.start()
+        Thread.sleep(50)
+        assertFailsWith<java.io.IOException> { bounded.execute("https://files.example.com/file") { } }
+        bounded.execute("https://files.example.com/file", waitForSlot = true) { }
+        holder.join()
+    }
+
+    @Test
+    fun downloadFilesReportsPerFileResults() {
+        val targetDir = Files.createTempDirectory("ksm-download")
+        fun unreachableFile(uid: String, name: String) =
+            KeeperFile(getRandomBytes(32), uid, KeeperFileData(name, name, null, 1, 0), "https://127.0.0.1:1/$uid", null)
+        val files = listOf(unreachableFile("file1", "cert.pem"), unreachableFile("file2", "../cert.pem"))
+        val results = downloadFiles(files, targetDir, maxAttempts = 1)
+        assertEquals(2, results.size)
+        assertTrue(results.none { it.isSuccess })
+        assertEquals(targetDir.resolve("cert.pem"), results[0].path)
+        assertEquals(targetDir.resolve("file2_cert.pem"), results[1].path)
+        assertEquals(1, results[1].attempts)
+    }
+
+    @Test
+    fun downloadFilesRunsSlowTransfersConcurrently() {
+        val fileCount = 12
+        val fileKey = getRandomBytes(32)
+        val contents = (0 until fileCount).map { getRandomBytes(1000 + it) }
+        val active = AtomicInteger()
+        val maxActive = AtomicInteger()
+        val transport = object : KeeperFileTransport {
+            override fun download(url: String, read: (InputStream) -> Unit) {
+                maxActive.accumulateAndGet(active.incrementAndGet(), ::maxOf)
+                Thread.sleep(300)
+                read(ByteArrayInputStream(encrypt(contents[url.substringAfterLast('/').toInt()], fileKey)))
+                active.decrementAndGet()
+            }
+        }
+        // the second name differs only in case, it gets the UID prefix like an exact duplicate
+        val names = listOf("Report.pdf", "report.pdf") + (2 until fileCount).map { "file$it.bin" }
+        val files = names.mapIndexed { i, name ->
+            KeeperFile(fileKey, "file$i", KeeperFileData(name, name, null, 1000L + i, 0), "https://files.example.com/$i", null)
+        }
+        val targetDir = Files.createTempDirectory("ksm-download")
+        val results = downloadFiles(files, targetDir, parallelism = fileCount, maxAttempts = 1, transport = transport)
+        assertTrue(results.all { it.isSuccess }, results.mapNotNull { it.error }.joinToString())
+        assertEquals(targetDir.resolve("file1_report.pdf"), results[1].path)
+        results.forEachIndexed { i, result -> assertContentEquals(contents[i], Files.readAllBytes(result.path)) }
+        assertTrue(maxActive.get() > 1)
+    }
+
+    @Test
+    fun recordCacheServesRecordsOffline() {
+        val cacheDir = Files.createTempDirectory("ksm-cache")
+        val cache = KeeperRecordCache(cacheDir)
+        val options = fakeDataOptions().copy(recordCache = cache)
+        val online = getSecrets(options)
+        assertEquals(2, online.records.size)
+
+        val unreachable = RecordingTransport()
+        unreachable.respond = { _, _ -> throw ConnectException("Connection refused") }
+        val offlineOptions = options.copy(transport = unreachable)
+        Thread.sleep(5)
+        val offlineStart = System.currentTimeMillis()
+        val offline = getSecrets(offlineOptions)
+        assertEquals(2, offline.records.size)
+        assertNotNull(offline.warnings)
+        val record = online.records[0]
+        val single = getSecrets(offlineOptions, listOf(record.recordUid))
+        assertEquals(1, single.records.size)
+        assertEquals(record.getTitle(), single.records[0].getTitle())
+
+        // reads are recorded in the index on disk, not only in memory
+        val lastAccess = Json.parseToJsonElement(cacheDir.resolve("index.json").toFile().readText())
+            .jsonObject["entries"]!!.jsonObject[record.recordUid]!!.jsonObject["lastAccess"]!!.jsonPrimitive.long
+        assertTrue(lastAccess >= offlineStart)
+    }
+
+    @Test
+    fun cachedValueWriterCoalescesAndServesPendingValue() {
+        val path = Files.createTempDirectory("ksm-cache-value").resolve("cache.dat")
+        // background writes run only when the test runs them
+        val tasks = ArrayDeque<Runnable>()
+        val writer = CachedValueWriter(path, Executor { tasks.add(it) })
+        assertNull(writer.read())
+
+        writer.submit(stringToBytes("first"))
+        writer.submit(stringToBytes("second"))
+        assertEquals(1, tasks.size)
+        assertFalse(Files.exists(path))
+        assertEquals("second", bytesToString(writer.read()!!))
+
+        tasks.removeFirst().run()
+        assertNull(writer.pendingValue())
+        assertEquals("second", bytesToString(Files.readAllBytes(path)))
+
+        writer.submit(stringToBytes("third"))
+        writer.flush()
+        assertNull(writer.pendingValue())
+        assertEquals("third", bytesToString(writer.read()!!))
+        // the write scheduled before the flush finds nothing left to write
+        tasks.removeFirst().run()
+        assertEquals("third", bytesToString(Files.readAllBytes(path)))
+
+        writer.submit(stringToBytes("fourth"))
+        writer.writeNow(stringToBytes("saved"))
+        assertNull(writer.pendingValue())
+        assertEquals("saved", bytesToString(writer.read()!!))
+        assertEquals(listOf("cache.dat"), Files.list(path.parent).use { files -> files.map { it.fileName.toString() }.toList() })
+    }
+
+    @Test
+    fun snapshotLooksUpRecordsWithoutNetwork() {
+        val options = fakeDataOptions()
+        val secrets = getSecrets(options)
+        val path = Files.createTempDirectory("ksm-snapshot").resolve("secrets.snapshot")
+        KeeperSnapshot.write(path, secrets, options.storage)
+        KeeperSnapshot.open(path, options.storage).use { snapshot ->
+            assertEquals(2, snapshot.size)
+            val record = secrets.records[1]
+            val found = snapshot.getRecordByUid(record.recordUid)
+            assertNotNull(found)
+            assertEquals(record.getTitle(), found.getTitle())
+            assertEquals(record.revision, found.revision)
+            assertEquals(record.recordUid, snapshot.getSecretByTitle(record.getTitle())!!.recordUid)
+            assertNull(snapshot.getRecordByUid("missing"))
+            assertEquals(secrets.records.map { it.recordUid }, snapshot.getRecords().map { it.recordUid })
+        }
+
+        // an index entry pointed at another record is detected when the file is opened
+        val tampered = Files.readAllBytes(path)
+        tampered[48 + 16 + 3] = (tampered[48 + 16 + 3].toInt() xor 1).toByte()
+        val tamperedPath = path.resolveSibling("tampered.snapshot")
+        Files.write(tamperedPath, tampered)
+        assertFailsWith<Exception> { KeeperSnapshot.open(tamperedPath, options.storage) }
+    }
+
+    @Test
+    fun notationResolverBatchesRecordLookups() {
+        val options = fakeDataOptions()
+        val transport = RecordingTransport(options.resolvedTransport)
+        val uid = "Ue8h6JyWUs7Iu6eY_mha-w"
+        val notations = listOf("keeper://$uid/field/password", "$uid/field/password[0]", "$uid/type", "$uid/nothing")
+        val results = NotationResolver(options.copy(transport = transport)).tryResolve(notations)
+        assertEquals(listOf("EwFpmg);7KsO9+ln8g7"), results["keeper://$uid/field/password"])
+        assertEquals(listOf("EwFpmg);7KsO9+ln8g7"), results["$uid/field/password[0]"])
+        assertEquals(1, results["$uid/type"]!!.size)
+        assertEquals(emptyList(), results["$uid/nothing"])
+        // same number of requests as a single getSecrets call
+        assertEquals(2, transport.requests.size)
+    }
+
+    @Test
+    fun fieldLookupFollowsMutations() {
+        val data = KeeperRecordData("Title", "login", mutableListOf(Login("user"), Password("secret")))
+        val record = KeeperRecord(ByteArray(0), "recordUid", data = data, revision = 1)
+        assertEquals("secret", record.getPassword())
+        assertNull(data.getField<FileRef>())
+        assertNull(data.getFieldByLabel("Env"))
+
+        data.fields.add(0, FileRef(value = mutableListOf("fileUid")))
+        addCustomField(record, Text(label = "Env", value = mutableListOf("prod")))
+        assertEquals("fileUid", data.getField<FileRef>()?.value?.get(0))
+        assertEquals("secret", data.getField(Password::class.java).let { (it as Password).value[0] })
+        assertEquals(listOf("prod"), (data.getFieldByLabel("Env") as Text).value)
+
+        data.fields[2] = Password("rotated")
+        assertEquals("rotated", record.getPassword())
+        data.fields[1] = Email("user@example.com")
+        assertNull(data.getField<Login>())
+        assertNotNull(data.getField<Email>())
+
+        // a field replaced in place ahead of another of its type, and a relabeled field
+        data.fields[0] = Password("first")
+        assertEquals("first", record.getPassword())
+        (data.custom!![0] as Text).label = "Stage"
+        assertNull(data.getFieldByLabel("Env"))
+        assertEquals(listOf("prod"), (data.getFieldByLabel("Stage") as Text).value)
+    }
+
+    @Test
+    fun unknownSchemaPartsSurviveRoundTrip() {
+        val json = """{"title":"T","type":"futureLogin","revisionNote":"x","fields":[
+            {"type":"password","value":["secret"],"strength":5},
+            {"type":"futureField","label":"Future","value":[{"a":1}]},],"custom":[],}"""
+        val warnings = mutableListOf<KeeperSchemaWarning>()
+        val data = decodeRecordData("recordUid", stringToBytes(json)) { warnings.add(it) }
+        assertNotNull(data)
+        assertEquals("secret", data.getField<Password>()?.value?.get(0))
+        assertEquals("futureField", (data.fields[1] as UnknownField).type)
+        assertEquals(
+            setOf("revisionNote", "futureField", "password.strength"),
+            warnings.map { it.name }.toSet()
+        )
+
+        val saved = Json.parseToJsonElement(Json.encodeToString(data)).jsonObject
+        assertEquals("x", saved["revisionNote"]!!.jsonPrimitive.content)
+        val fields = saved["fields"]!!.jsonArray
+        assertEquals(5, fields[0].jsonObject["strength"]!!.jsonPrimitive.int)
+        assertEquals(Json.parseToJsonElement("""{"type":"futureField","label":"Future","value":[{"a":1}]}"""), fields[1])
+
+        // copies keep the unknown parts, an unknown field serializes on its own too
+        val copied = Json.parseToJsonElement(Json.encodeToString(data.copy(title = "T2"))).jsonObject
+        assertEquals("x", copied["revisionNote"]!!.jsonPrimitive.content)
+        val password = (data.fields[0] as Password).copy(value = mutableListOf("changed"))
+        assertEquals(5, Json.encodeToJsonElement<KeeperRecordField>(password).jsonObject["strength"]!!.jsonPrimitive.int)
+        assertEquals(fields[1], Json.parseToJsonElement(Json.encodeToString<KeeperRecordField>(data.fields[1])))
+        assertEquals(fields[1], Json.parseToJsonElement(Json.encodeToString(data.fields[1] as UnknownField)))
+    }
+
+    @Test
+    fun jsonBytesRoundTrip() {
+        val small = KeeperRecordData("Zürich ✓", "login", mutableListOf(Password("pässword")))
+        val large = small.copy(notes = "x".repeat(200_000))
+        for (data in listOf(small, large, small)) {
+            val bytes = Json.encodeToBytes(data)
+            assertContentEquals(stringToBytes(Json.encodeToString(data)), bytes)
+            assertEquals(data, Json.decodeFromBytes<KeeperRecordData>(bytes))
+        }
+    }
+
+    @Test
+    fun updateSecretsReportsPerRecordResults() {
+        val options = fakeDataOptions()
+        val transport = RecordingTransport()
+        val throttled = AtomicInteger()
+        transport.respond = { _, request ->
+            when (request["recordUid"]!!.jsonPrimitive.content) {
+                "record3" -> KeeperHttpResponse(400, stringToBytes("{\"error\":\"access_denied\",\"message\":\"No access\"}"))
+                // throttled once, retried by the batch without options.rateLimit
+                "record4" -> if (throttled.getAndIncrement() == 0) throttledResponse() else null
+                else -> null
+            }
+        }
+        val batchOptions = options.copy(transport = transport)
+        val records = (1..5).map {
+            KeeperRecord(getRandomBytes(32), "record$it", data = KeeperRecordData("Title $it", "login", mutableListOf(Password("p$it"))), revision = 1)
+        }
+        val results = updateSecrets(batchOptions, records, UpdateTransactionType.ROTATION, maxInFlight = 2)
+        assertEquals(records.map { it.recordUid }, results.map { it.recordUid })
+        assertEquals(listOf("record3"), results.filter { !it.isSuccess }.map { it.recordUid })
+
+        val finalized = completeTransactions(batchOptions, results.filter { it.isSuccess }.map { it.recordUid })
+        assertTrue(finalized.all { it.isSuccess })
+        assertEquals(6, transport.count("update_secret"))
+        assertEquals(4, transport.count("finalize_secret_update"))
+    }
+
+    @Test
+    fun cachingSecretsManagerServesFromMemory() {
+        val cache = CachingSecretsManager(fakeDataOptions())
+        assertEquals(2, cache.getSecrets().records.size)
+        // fake data has no more successful responses - the second read must not hit the network
+        val filtered = cache.getSecrets(listOf("Ue8h6JyWUs7Iu6eY_mha-w"))
+        assertEquals(1, filtered.records.size)
+        assertNotNull(cache.getRecordByUid("Ue8h6JyWUs7Iu6eY_mha-w"))
+    }
+
     @Test
     fun getSecretsE2EWithNoProvider() {
         getSecretsE2E()